@@ -0,0 +1,59 @@
+package org.ssg.justsynth.bench;
+
+import org.craigl.softsynth.EnvelopeGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+//The envelope of every held voice for one buffer: a sample at a time through
+//getValue, a block at a time through advance, and a block at a time with notes
+//pressed and released every few buffers so the voices spend their time in short
+//attack, decay and release segments rather than sustain.
+public class EnvelopeBenchmark extends HeldChain {
+
+	@Param({"linear", "exponential"})
+	public String curve;
+
+	private int[] voices;
+	private int count;
+	private double[] gain;
+	private int buffers;
+
+	@Override
+	void setUpStage(){
+		chain.envelope.setCurve(curve.equals("exponential") ? EnvelopeGenerator.CURVE_EXPONENTIAL : EnvelopeGenerator.CURVE_LINEAR);
+		chain.envelope.setParameters(10, 15, 0.5, 20);
+		voices = chain.envelope.getActiveVoices();
+		count = chain.envelope.getActiveCount();
+		gain = new double[blockSize];
+	}
+
+	@Benchmark
+	public double perSample(){
+		double acc = 0;
+		for(int k=0;k<count;k++)
+			for(int i=0;i<blockSize;i++)
+				acc += chain.envelope.getValue(voices[k]);
+		return acc;
+	}
+
+	@Benchmark
+	public double block(){
+		for(int k=0;k<count;k++)
+			chain.envelope.advance(voices[k], gain, 0, blockSize);
+		return gain[0];
+	}
+
+	@Benchmark
+	public double adsr(){
+		buffers++;
+		for(int k=0;k<count;k++){
+			int phase = (buffers + k) % 6;
+			if(phase == 0)
+				chain.envelope.noteOn[voices[k]] = true;
+			else if(phase == 3)
+				chain.envelope.noteOff[voices[k]] = true;
+			chain.envelope.advance(voices[k], gain, 0, blockSize);
+		}
+		return gain[0];
+	}
+}
@@ -0,0 +1,69 @@
+package org.ssg.justsynth.bench;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.craigl.softsynth.AudioConfig;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+
+//Runs the benchmarks like org.openjdk.jmh.Main, then reports every score as a share
+//of the real time budget of one buffer, the block size over the sample rate of the
+//config the benchmark ran with. gradle jmh runs this.
+//
+//Usage: Headroom [JMH options]
+public class Headroom {
+
+	public static void main(String[] args) throws Exception {
+
+		CommandLineOptions options = new CommandLineOptions(args);
+		Runner runner = new Runner(options);
+		if(options.shouldHelp()){
+			options.showHelp();
+			return;
+		}
+		if(options.shouldList()){
+			runner.list();
+			return;
+		}
+		if(options.shouldListWithParams()){
+			runner.listWithParams(options);
+			return;
+		}
+
+		Collection<RunResult> results = runner.run();
+
+		System.out.println();
+		System.out.printf("%-28s %-14s %12s %14s %10s %9s  %s%n", "benchmark", "config", "budget ns", "ns/buffer", "% budget", "headroom", "params");
+		for(RunResult result : results){
+			BenchmarkParams params = result.getParams();
+			//Every benchmark is in this package, nested stages keep their outer class
+			String name = params.getBenchmark().substring(Headroom.class.getPackage().getName().length()+1);
+			if(result.getPrimaryResult().getScoreUnit().indexOf("/op") < 0){
+				System.out.printf("%-28s not a time per buffer%n", name);
+				continue;
+			}
+			//Benchmarks without a config param run the default one
+			String param = params.getParam("config");
+			if(param == null)
+				param = "default";
+			AudioConfig config = AudioConfig.parse(param);
+			double budget = config.getBlockTimeInSecs() * 1e9;
+			double ns = result.getPrimaryResult().getScore() * params.getTimeUnit().toNanos(1);
+			System.out.printf("%-28s %-14s %12.0f %14.0f %9.2f%% %8.1fx  %s%n",
+					name, param, budget, ns, 100.0 * ns / budget, budget / ns, otherParams(params));
+		}
+	}
+
+	//The params that tell the rows apart, other than the config which has a column
+	private static String otherParams(BenchmarkParams params){
+		ArrayList<String> values = new ArrayList<String>();
+		for(String key : params.getParamsKeys()){
+			if(!key.equals("config"))
+				values.add(key+"="+params.getParam(key));
+		}
+		return values.isEmpty() ? "" : values.toString();
+	}
+}
@@ -0,0 +1,103 @@
+package org.ssg.justsynth.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.craigl.softsynth.AudioConfig;
+import org.craigl.softsynth.BasicOscillator;
+import org.craigl.softsynth.EnvelopeGenerator;
+import org.craigl.softsynth.SampleProviderIntfc;
+import org.craigl.softsynth.WavetableOscillator;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//The grid each stage of the engine is measured over: a chain with some notes held
+//in sustain, in a tuning, with a number of odd harmonics. Every benchmark renders
+//one buffer per call, so the scores are ns per buffer. Headroom reports them against
+//the real time budget of a buffer in the config each one ran with.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 100, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public abstract class HeldChain {
+
+	//Stands in for the stages upstream of the one being measured
+	static final SampleProviderIntfc NO_OP = new SampleProviderIntfc(){
+		public int getSamples(float[][] buffer, int numSamples){
+			return numSamples;
+		}
+	};
+
+	//default, low, safe or rate,block,deviceBlocks
+	@Param({"default"})
+	public String config;
+
+	@Param({"1", "4", "23"})
+	public int notes;
+
+	//EQUAL_TEMPERED through PYTHAGOREAN
+	@Param({"0", "1", "2", "3", "4"})
+	public int tuning;
+
+	@Param({"4", "16"})
+	public int harmonics;
+
+	BenchChain chain;
+	float[][] buffer;
+	float[] mix;
+	int blockSize;
+
+	@Setup
+	public void buildChain(){
+		AudioConfig audio = AudioConfig.parse(config);
+		BasicOscillator osc = newOscillator(audio);
+		osc.setHarmonics(oddHarmonics(harmonics));
+
+		chain = new BenchChain(audio, osc);
+		osc.setTuning(tuning, 0);
+		chain.hold(notes);
+
+		buffer = chain.buffer;
+		mix = buffer[buffer.length-1];
+		blockSize = chain.blockSize;
+		setUpStage();
+	}
+
+	//The oscillator the chain is built around
+	BasicOscillator newOscillator(AudioConfig audio){
+		return new WavetableOscillator(BasicOscillator.NUM_NOTES, EnvelopeGenerator.DEFAULT_VOICES, audio.getSampleRate());
+	}
+
+	//Anything the stage being measured needs once the notes are held
+	void setUpStage(){
+	}
+
+	//Odd harmonics falling off as 1/n, like a square wave
+	static double[] oddHarmonics(int count){
+		double[] amps = new double[count];
+		for(int i=0;i<count;i++)
+			amps[i] = 1.0 / (2*i+1);
+		return amps;
+	}
+
+	//Hands the stage the same mix every buffer, including the cost of copying it in
+	SampleProviderIntfc replayMix(){
+		chain.render();
+		final float[] input = mix.clone();
+		return new SampleProviderIntfc(){
+			public int getSamples(float[][] buffer, int numSamples){
+				System.arraycopy(input, 0, mix, 0, numSamples);
+				return numSamples;
+			}
+		};
+	}
+}
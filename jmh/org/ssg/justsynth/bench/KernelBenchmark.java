@@ -0,0 +1,59 @@
+package org.ssg.justsynth.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.craigl.softsynth.AudioConfig;
+import org.craigl.softsynth.SampleKernels;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+
+//The sample kernels on their own, over the rows of the held notes, scalar against
+//vector. The vector kernels need the vector source set built and --add-modules
+//jdk.incubator.vector, which gradle jmh passes on when it can. The Vector API is
+//only fast once C2 has compiled it, which takes longer than the other warm ups.
+@Warmup(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+public class KernelBenchmark extends HeldChain {
+
+	@Param({"scalar", "vector"})
+	public String kernels;
+
+	private SampleKernels kernel;
+	private int[] voices;
+	private int count;
+	private double[] gain;
+	private byte[] pcm;
+
+	@Override
+	void setUpStage(){
+		kernel = kernels.equals("vector") ? SampleKernels.vector() : SampleKernels.scalar();
+		if(kernel == null)
+			throw new IllegalStateException("No vector kernels, run with --add-modules jdk.incubator.vector");
+		voices = chain.envelope.getActiveVoices();
+		count = chain.envelope.getActiveCount();
+		chain.render();
+		gain = new double[blockSize];
+		Arrays.fill(gain, 1.0);
+		pcm = new byte[blockSize * AudioConfig.BYTES_PER_FRAME];
+	}
+
+	@Benchmark
+	public float applyGain(){
+		for(int k=0;k<count;k++)
+			kernel.applyGain(buffer[voices[k]], gain, blockSize);
+		return buffer[voices[0]][0];
+	}
+
+	@Benchmark
+	public float mix(){
+		kernel.mix(buffer, voices, count, mix, blockSize);
+		return mix[0] + kernel.countClipped(mix, blockSize);
+	}
+
+	@Benchmark
+	public byte toPCM(){
+		kernel.toPCM(mix, pcm, blockSize);
+		return pcm[0];
+	}
+}
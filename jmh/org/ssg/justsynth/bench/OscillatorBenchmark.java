@@ -0,0 +1,38 @@
+package org.ssg.justsynth.bench;
+
+import org.craigl.softsynth.AudioConfig;
+import org.craigl.softsynth.BasicOscillator;
+import org.craigl.softsynth.EnvelopeGenerator;
+import org.craigl.softsynth.PolyBlepOscillator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+//One buffer of every held voice from each oscillator. The PolyBLEP waves ignore the
+//harmonic count; a band limited square on the lowest key has as many odd harmonics
+//as harmonics=50 at 22050 Hz.
+public class OscillatorBenchmark extends HeldChain {
+
+	@Param({"additive", "wavetable", "blep-saw", "blep-square", "blep-triangle"})
+	public String oscillator;
+
+	@Override
+	BasicOscillator newOscillator(AudioConfig audio){
+		if(oscillator.equals("additive"))
+			return new BasicOscillator(BasicOscillator.NUM_NOTES, EnvelopeGenerator.DEFAULT_VOICES, audio.getSampleRate());
+		if(oscillator.startsWith("blep-")){
+			PolyBlepOscillator blep = new PolyBlepOscillator(BasicOscillator.NUM_NOTES, EnvelopeGenerator.DEFAULT_VOICES, audio.getSampleRate());
+			if(oscillator.equals("blep-square"))
+				blep.setWaveform(PolyBlepOscillator.WAVE_SQUARE);
+			else if(oscillator.equals("blep-triangle"))
+				blep.setWaveform(PolyBlepOscillator.WAVE_TRIANGLE);
+			return blep;
+		}
+		return super.newOscillator(audio);
+	}
+
+	@Benchmark
+	public float render(){
+		chain.osc.getSamples(buffer, blockSize);
+		return buffer[0][0];
+	}
+}
@@ -0,0 +1,61 @@
+package org.ssg.justsynth.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.craigl.softsynth.AudioConfig;
+import org.craigl.softsynth.BasicOscillator;
+import org.craigl.softsynth.ParallelVoiceRenderer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//Many held voices of the heavier additive oscillator, so there is real work to
+//share, rendered on a number of threads. ParallelCheck checks that every thread
+//count gives the same output. Counts past the machine's cores show the cost of the
+//barriers; -p threads=... picks others.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 100, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class ParallelBenchmark {
+
+	@Param({"128"})
+	public int voices;
+
+	@Param({"1", "2", "4", "8", "16"})
+	public int threads;
+
+	private BenchChain chain;
+	private ParallelVoiceRenderer renderer;
+
+	@Setup
+	public void buildChain(){
+		AudioConfig config = AudioConfig.DEFAULT;
+		chain = new BenchChain(config, new BasicOscillator(voices, voices, config.getSampleRate()));
+		renderer = new ParallelVoiceRenderer(chain.osc, chain.vca, threads);
+		chain.mixer.setSampleProvider(renderer);
+		chain.hold(voices);
+	}
+
+	@TearDown
+	public void shutdown(){
+		renderer.shutdown();
+	}
+
+	@Benchmark
+	public float render(){
+		chain.render();
+		return chain.buffer[chain.buffer.length-1][0];
+	}
+}
@@ -0,0 +1,27 @@
+package org.ssg.justsynth.bench;
+
+import org.craigl.softsynth.ConvolutionReverb;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+//The reverb with a synthetic room of the given length, fed the same mix every buffer
+public class ReverbBenchmark extends HeldChain {
+
+	@Param({"1", "3", "6"})
+	public double seconds;
+
+	private ConvolutionReverb reverb;
+
+	@Override
+	void setUpStage(){
+		reverb = chain.engine.getReverb();
+		reverb.setSampleProvider(replayMix());
+		reverb.setImpulse(ConvolutionReverb.syntheticImpulse(chain.config.getSampleRate(), seconds, 1));
+	}
+
+	@Benchmark
+	public float render(){
+		reverb.getSamples(buffer, blockSize);
+		return mix[0];
+	}
+}
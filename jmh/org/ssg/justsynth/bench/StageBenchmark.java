@@ -0,0 +1,61 @@
+package org.ssg.justsynth.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+//The VCA, mixer and limiter on their own, one buffer of the held voices each,
+//and the whole chain from oscillator to limiter
+public class StageBenchmark {
+
+	//Gain envelopes applied to the rows the oscillator left in the buffer
+	public static class Vca extends HeldChain {
+
+		@Override
+		void setUpStage(){
+			chain.vca.setSampleProvider(NO_OP);
+		}
+
+		@Benchmark
+		public float render(){
+			chain.vca.getSamples(buffer, blockSize);
+			return buffer[0][0];
+		}
+	}
+
+	public static class Mixer extends HeldChain {
+
+		@Override
+		void setUpStage(){
+			chain.mixer.setSampleProvider(NO_OP);
+		}
+
+		@Benchmark
+		public float render(){
+			chain.mixer.getSamples(buffer, blockSize);
+			return mix[0];
+		}
+	}
+
+	//With more than a few notes held the mix is past full scale and gets turned down
+	public static class Limiter extends HeldChain {
+
+		@Override
+		void setUpStage(){
+			chain.engine.getLimiter().setSampleProvider(replayMix());
+		}
+
+		@Benchmark
+		public float render(){
+			chain.engine.getLimiter().getSamples(buffer, blockSize);
+			return mix[0];
+		}
+	}
+
+	public static class Chain extends HeldChain {
+
+		@Benchmark
+		public float render(){
+			chain.render();
+			return mix[0];
+		}
+	}
+}
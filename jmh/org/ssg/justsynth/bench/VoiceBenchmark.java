@@ -0,0 +1,45 @@
+package org.ssg.justsynth.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.craigl.softsynth.AudioConfig;
+import org.craigl.softsynth.WavetableOscillator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//The cost of rendering one buffer through the whole chain with 0, 1, 4 and all
+//23 notes held, to show that idle notes are free
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 100, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class VoiceBenchmark {
+
+	@Param({"0", "1", "4", "23"})
+	public int held;
+
+	private BenchChain chain;
+
+	@Setup
+	public void buildChain(){
+		chain = new BenchChain(AudioConfig.DEFAULT, new WavetableOscillator());
+		chain.hold(held);
+	}
+
+	@Benchmark
+	public float render(){
+		chain.render();
+		return chain.buffer[chain.buffer.length-1][0];
+	}
+}
@@ -0,0 +1,134 @@
+package org.craigl.softsynth;
+
+/**
+ * Audio Configuration
+ * <p>
+ * Chosen once at startup, this decides the trade off between latency<br>
+ * and safety from dropouts: the sample rate, how many samples are rendered<br>
+ * at a time, how many of those blocks the audio device buffers, and how<br>
+ * many rendered blocks can wait in the ring between the render thread and<br>
+ * the thread writing to the device.
+ * <p>
+ * A key press is heard roughly one block plus the ring plus the device<br>
+ * buffer later. A deeper ring rides out longer stalls of the render thread.
+ */
+
+public class AudioConfig {
+
+	public static final int[] SAMPLE_RATES = {22050, 44100, 48000};
+
+	// Ring depth when none is given
+	public static final int DEFAULT_RING_BLOCKS = 2;
+
+	// The settings the synth has always used, 23ms blocks with a one block device buffer
+	public static final AudioConfig DEFAULT = new AudioConfig(22050, 500, 1, DEFAULT_RING_BLOCKS);
+	// Small blocks and a short device buffer, for machines that can keep up
+	public static final AudioConfig LOW_LATENCY = new AudioConfig(48000, 128, 2, 2);
+	// Large blocks and deep buffers, for busy or slow machines
+	public static final AudioConfig SAFE = new AudioConfig(44100, 1024, 4, 4);
+
+	// 16 bit mono
+	public static final int BYTES_PER_FRAME = 2;
+
+	private final int sampleRate;
+	private final int blockSize;
+	private final int deviceBlocks;
+	private final int ringBlocks;
+
+	/**
+	 * AudioConfig Class Constructor
+	 *
+	 * @param sampleRate Samples per second, one of SAMPLE_RATES
+	 * @param blockSize Samples rendered by the chain at a time
+	 * @param deviceBlocks How many blocks the audio device buffers
+	 */
+	public AudioConfig(int sampleRate, int blockSize, int deviceBlocks) {
+		this(sampleRate, blockSize, deviceBlocks, DEFAULT_RING_BLOCKS);
+	}
+
+	/**
+	 * AudioConfig Class Constructor
+	 *
+	 * @param sampleRate Samples per second, one of SAMPLE_RATES
+	 * @param blockSize Samples rendered by the chain at a time
+	 * @param deviceBlocks How many blocks the audio device buffers
+	 * @param ringBlocks How many rendered blocks can wait to be written to the device
+	 */
+	public AudioConfig(int sampleRate, int blockSize, int deviceBlocks, int ringBlocks) {
+
+		boolean supported = false;
+		for (int rate : SAMPLE_RATES) {
+			supported |= (rate == sampleRate);
+		}
+		if (!supported) {
+			throw new IllegalArgumentException("Unsupported sample rate: " + sampleRate);
+		}
+		if (blockSize < 1 || deviceBlocks < 1 || ringBlocks < 1) {
+			throw new IllegalArgumentException("Block size, device blocks and ring blocks must be positive");
+		}
+
+		this.sampleRate = sampleRate;
+		this.blockSize = blockSize;
+		this.deviceBlocks = deviceBlocks;
+		this.ringBlocks = ringBlocks;
+	}
+
+	/**
+	 * Reads a configuration from a command line argument
+	 *
+	 * @param s "low", "default", "safe", or "rate,block,deviceBlocks[,ringBlocks]"
+	 *
+	 * @return The matching configuration
+	 */
+	public static AudioConfig parse(String s) {
+
+		if (s.equalsIgnoreCase("low")) {
+			return LOW_LATENCY;
+		} else if (s.equalsIgnoreCase("default")) {
+			return DEFAULT;
+		} else if (s.equalsIgnoreCase("safe")) {
+			return SAFE;
+		}
+
+		String[] parts = s.split(",");
+		if (parts.length != 3 && parts.length != 4) {
+			throw new IllegalArgumentException("Expected low, default, safe or rate,block,deviceBlocks[,ringBlocks]: " + s);
+		}
+		int ring = (parts.length == 4) ? Integer.parseInt(parts[3].trim()) : DEFAULT_RING_BLOCKS;
+		return new AudioConfig(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()), Integer.parseInt(parts[2].trim()), ring);
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public int getDeviceBlocks() {
+		return deviceBlocks;
+	}
+
+	public int getRingBlocks() {
+		return ringBlocks;
+	}
+
+	public double getSampleTimeInSecs() {
+		return 1.0 / sampleRate;
+	}
+
+	public double getBlockTimeInSecs() {
+		return (double)blockSize / sampleRate;
+	}
+
+	//Size of the device buffer to ask for
+	public int getDeviceBufferBytes() {
+		return blockSize * deviceBlocks * BYTES_PER_FRAME;
+	}
+
+	@Override
+	public String toString() {
+		return sampleRate + " Hz, " + blockSize + " sample blocks, " + deviceBlocks + " blocks buffered, " + ringBlocks + " in the ring";
+	}
+}
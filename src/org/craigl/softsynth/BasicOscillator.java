@@ -10,13 +10,20 @@ the position is universal, but you mod it by the period for each note
 
 package org.craigl.softsynth;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.apache.commons.math3.fraction.*;
 
 /**
  * BasicOscillator Class
  * <p>
- * A non bandwidth controlled digital oscillator which can produce three waveshapes.
+ * A digital oscillator which sums odd sine harmonics for each voice.<br>
+ * PolyBlepOscillator adds band limited saw, square and triangle waves.
  * <p>
  * See text for details.
  * 
@@ -33,29 +40,49 @@ public class BasicOscillator implements SampleProviderIntfc {
 
 	public final static int NUM_NOTES = 23;
 	
-	VCA vca;
+	//Decides which voices are sounding and which key each one plays
+	EnvelopeGenerator envelope;
+	
+	//Number of keys that can be played and voices that can sound at once
+	protected int numKeys;
+	protected int numVoices;
+	protected int sampleRate;
 	
-	//Each array is indexed by the note number, where 0 is A2 and 22 is G4
+	//The position in the waveform for each voice, as a fraction of one period.
+	//Kept across retunes so a sounding note changes pitch without a click.
+	private double phase[];
 	
-	//The position of the sample in the waveform for each note
-	private double sampleNumber[] = new double[NUM_NOTES];
+	//The remaining arrays are indexed by the key number, where 0 is A2 and 22 is G4
 	
 	//The note frequencies
-	public double[] equalTempFreq = new double[NUM_NOTES];
-	public double[] noteFreq = new double[NUM_NOTES];
+	public double[] equalTempFreq;
+	
+	//Every tuning laid out for every base note
+	private TuningTable tuningTable;
+	//The latest tuning, swapped in whole by setTuning
+	private final AtomicReference<TuningSnapshot> publishedTuning = new AtomicReference<TuningSnapshot>();
+	//The tuning the audio thread is using, only changes between buffers
+	protected TuningSnapshot tuning;
+	//Number of times setTuning has been called
+	private volatile long retuneCount;
+	//Frequency ratio applied to every key, set by pitch bend. The audio thread
+	//copies it into bend between buffers, like the tuning.
+	private volatile double pitchBend = 1.0;
+	protected double bend = 1.0;
 	
-	private String[] tuningStrings = { "1/1, 16/15, 8/7, 6/5, 5/4, 4/3, 7/5, 3/2, 8/5, 5/3, 7/4, 15/8",
-									  "1/1, 16/15, 9/8, 6/5, 5/4, 4/3, 25/18, 3/2, 8/5, 5/3, 9/5, 15/8",
-									  "1/1, 16/15, 9/8, 6/5, 5/4, 4/3, 45/32, 3/2, 8/5, 5/3, 16/9, 15/8",
-									  "1/1, 256/243, 9/8, 32/27, 81/64, 4/3, 729/512, 3/2, 128/81, 27/16, 16/9, 243/128"};
+	//Scala files for the tunings after Equal Tempered, in the order of the constants above
+	private static final String[] BUILT_IN_SCALES = {"just7.scl", "just5ext.scl", "just5sym.scl", "pythagorean.scl"};
 	
-	public Fraction[][] tuneRatios;
+	//The remaining lists are indexed by tuning
 	
+	//The ratios of each scale as fractions, null for Equal Tempered and for
+	//tunings that can't be shown as fractions
+	public ArrayList<Fraction[]> tuneRatios;
+	
+	//Ratio of each step of the scale to the first, Equal Tempered holds its frequencies
 	public ArrayList<double[]> tunings;	
-
-	//The number of samples in one period of the note
-	//The note being a sine wave of the given frequency
-	public double[] notePeriod = new double[NUM_NOTES];
+	
+	public ArrayList<String> tuningNames;
 	
 	//These are the magnitudes of the harmonics, used in additive synthesis
 	public double[] harmoAmp = {.8, .6, .4, .4};
@@ -65,148 +92,233 @@ public class BasicOscillator implements SampleProviderIntfc {
 	/**
 	 * Basic Oscillator Class Constructor
 	 * <p>
-	 * Default instance has SIN waveshape at 1000 Hz
+	 * Default instance covers the keys of the on-screen keyboard
 	 */
 	public BasicOscillator() {
+		this(NUM_NOTES, EnvelopeGenerator.DEFAULT_VOICES, AudioConfig.DEFAULT.getSampleRate());
+	}
+	
+	/**
+	 * Basic Oscillator Class Constructor
+	 * 
+	 * @param numKeys Number of keys that can be played, starting from A2
+	 * @param numVoices Number of voices that can sound at once
+	 * @param sampleRate Samples per second
+	 */
+	public BasicOscillator(int numKeys, int numVoices, int sampleRate) {
 
+		this.numKeys = numKeys;
+		this.numVoices = numVoices;
+		this.sampleRate = sampleRate;
+		
+		phase = new double[numVoices];
+		equalTempFreq = new double[numKeys];
+		
 		// Set defaults
 		
-		//Fill out Equal Tempered, and copy that to the active frequencies
+		//Fill out Equal Tempered
 		double temp = 110.0;
-		for(int i=0;i<NUM_NOTES;i++){
+		for(int i=0;i<numKeys;i++){
 			equalTempFreq[i] = temp;
-			noteFreq[i] = temp;
 			temp*=Math.pow(2.0, 1.0/12.0);
 		}
 		
-		for(int i=0;i<notePeriod.length;i++)
-			notePeriod[i] = SamplePlayer.SAMPLE_RATE / noteFreq[i];
-		
 		harmoSum = 0;
 		for(int i=0;i<harmoAmp.length;i++){
 			harmoSum+=harmoAmp[i];
 		}
 		
-		//Populate the tuning ratio array and the tunings array
-		tuneRatios  = new Fraction[tuningStrings.length][12];//12 unique ratios per scale
-		
-		String[] tempSplit;
-
-		for(int dex=0; dex< tuningStrings.length; dex++){
-			String[] tempStrArr = tuningStrings[dex].split(",");
-			for(int i=0;i<tempStrArr.length;i++){
-				tempSplit = tempStrArr[i].split("/");
-				tuneRatios[dex][i] = new Fraction( Integer.parseInt(tempSplit[0].trim()), Integer.parseInt(tempSplit[1].trim()) );
-			}
-		}
-		
+		//Populate the tuning lists, starting with Equal Tempered
+		tuneRatios = new ArrayList<Fraction[]>();
 		tunings = new ArrayList<double[]>();
+		tuningNames = new ArrayList<String>();
+		tuningTable = new TuningTable(numKeys);
+		
+		tuneRatios.add(null);
 		tunings.add(equalTempFreq);
-		for(int i=0;i<tuningStrings.length;i++){//TuningStrings.length is the number of alternate tunings
-			double[] tempRR = new double[12];
-			for(int j=0;j<tempRR.length;j++){
-				//System.out.println(i+","+j);
-				tempRR[j] = tuneRatios[i][j].doubleValue();
+		tuningNames.add("Equal Tempered");
+		
+		for(int i=0;i<BUILT_IN_SCALES.length;i++){
+			InputStream in = BasicOscillator.class.getResourceAsStream("tunings/" + BUILT_IN_SCALES[i]);
+			//The build copies them next to the classes, javac on its own doesn't
+			if(in == null)
+				throw new IllegalStateException("Missing built in tuning " + BUILT_IN_SCALES[i]
+						+ ", copy src/org/craigl/softsynth/tunings next to the compiled classes");
+			try{
+				addTuning(ScalaScale.parse(new InputStreamReader(in, StandardCharsets.ISO_8859_1), BUILT_IN_SCALES[i]), null);
+				in.close();
+			}catch(IOException e){
+				throw new IllegalStateException("Can't read built in tuning " + BUILT_IN_SCALES[i], e);
 			}
-			tunings.add(tempRR);
 		}
+		
+		//Start out Equal Tempered, tuned to A
+		setTuning(EQUAL_TEMPERED, 0);
+		updateTuning();
+		retuneCount = 0;
 	}
 	
-	public void setVCA(VCA vca_in){
-		vca = vca_in;
+	public void setEnvelope(EnvelopeGenerator envelope){
+		this.envelope = envelope;
+	}
+	
+	/**
+	 * Replaces the harmonic amplitudes used in additive synthesis
+	 * 
+	 * @param amps Amplitude of each odd harmonic, starting with the fundamental
+	 */
+	public void setHarmonics(double[] amps){
+		harmoAmp = amps.clone();
+		harmoSum = 0;
+		for(int i=0;i<harmoAmp.length;i++){
+			harmoSum+=harmoAmp[i];
+		}
 	}
 
-	//Recalculates the noteFreq array based on a chosen tuning.
-	//The basenote will always be in the lower octave.
+	/**
+	 * Adds a tuning that can then be chosen with setTuning. Called from the<br>
+	 * user interface thread.
+	 * 
+	 * @param scale The scale to add
+	 * @param mapping Which scale degree each key plays, or null for one key per note
+	 * 
+	 * @return The index of the new tuning
+	 */
+	public int addTuning(ScalaScale scale, KeyboardMapping mapping){
+		//The ratios table assumes 12 notes that repeat at the octave
+		Fraction[] intervals = scale.getIntervals();
+		if(scale.getSteps() != 12 || scale.getPeriod() != 2.0 || mapping != null)
+			intervals = null;
+		
+		tuneRatios.add(intervals);
+		tunings.add(scale.getRatios());
+		tuningNames.add(scale.getName());
+		return tuningTable.addTuning(scale.getRatios(), scale.getPeriod(), mapping);
+	}
+	
+	//Switches to a chosen tuning. Called from the user interface thread.
+	//The basenote will always be in the lower octave. The scale is built on the base note's
+	//Equal Tempered pitch from A440, so the result only depends on the tuning and base note.
+	//Building on the pitch the base note had in the last tuning let retunes wander, and a
+	//scale that left the base note unmapped would leave every later tuning at 0 Hz.
+	//The audio thread picks up the new tuning at the start of its next buffer.
 	public void setTuning(int tuneDex, int baseNote){
-		switch (tuneDex){
-		case EQUAL_TEMPERED://0
-			for(int i=0;i<noteFreq.length;i++)
-				noteFreq[i] = equalTempFreq[i];
-			break;
-		default:
-			double[] tempTuneArr = tunings.get(tuneDex);
-			double temp = noteFreq[baseNote];
-			
-			//Zero out everything except the chosen base note
-			for(int i=0;i<noteFreq.length;i++)
-				noteFreq[i]=0.0;
-			noteFreq[baseNote] = temp;
-			
-			//Fill in one chromatic scale, starting from the base note
-			for(int i=baseNote; i<baseNote+tempTuneArr.length; i++){
-				noteFreq[i] = noteFreq[baseNote] * tempTuneArr[i-baseNote];
-			}
-			
-			//Fill in the rest of the notes as octaves up or down
-			for(int i=0;i<noteFreq.length/2;i++){
-				if(noteFreq[i]==0)
-					noteFreq[i]=noteFreq[i+12]/2;
-			}
-			for(int i=noteFreq.length/2;i<noteFreq.length;i++){
-				if(noteFreq[i]==0)
-					noteFreq[i]=noteFreq[i-12]*2;
-			}
-			break;
-		}
+		double baseFreq = equalTempFreq[baseNote];
+		
+		publishedTuning.set(new TuningSnapshot(tuneDex, baseNote, baseFreq, tuningTable.getShape(tuneDex, baseNote), sampleRate));
+		retuneCount++;
+	}
+	
+	/**
+	 * Picks up the latest tuning from setTuning. Called by the audio thread<br>
+	 * between buffers, so every sample of a buffer is rendered in one tuning.
+	 */
+	public void updateTuning(){
+		tuning = publishedTuning.get();
+		bend = pitchBend;
+	}
+	
+	/**
+	 * Bends the pitch of every key. Called from any one thread other than<br>
+	 * the audio thread, takes effect at the start of the next buffer.
+	 * 
+	 * @param ratio Frequency ratio, 1.0 for no bend
+	 */
+	public void setPitchBend(double ratio){
+		pitchBend = ratio;
 	}
 	
 	/* Return the next sample of the oscillator's waveform
+	 * @param voice The voice whose phase is advanced
+	 * @param key The key the voice is playing
 	 * @return Next oscillator sample
 	 */
-	protected double getSample(int noteDex) {
+	protected double getSample(int voice, int key) {
 		
 		double value = 0;
-		double constMultiplicand = 2.0 * Math.PI * noteFreq[noteDex] * sampleNumber[noteDex] / (double)SamplePlayer.SAMPLE_RATE;
+		double constMultiplicand = 2.0 * Math.PI * phase[voice];
 		
 		for(int i=0; i<harmoAmp.length;i++){
 			value+=harmoAmp[i]*Math.sin((double)(2.0*i+1) * constMultiplicand);
 		}
 		
-		sampleNumber[noteDex]++;
-		if(sampleNumber[noteDex] > notePeriod[noteDex])
-			sampleNumber[noteDex] -= notePeriod[noteDex];
+		phase[voice] += tuning.getPhaseIncrement(key) * bend;
+		if(phase[voice] >= 1.0)
+			phase[voice] -= 1.0;
 
 		return value/harmoSum;
 	}
 		
 	/* Get a buffer of oscillator samples
-	 * @param buffer Array to fill with samples
-	 * @return Count of bytes produced.
+	 * @param buffer Array to fill with samples, one row per voice
+	 * @param numSamples Number of samples to produce for each voice
+	 * @return Count of samples produced.
 	 */
-	//inputNoteDex is -1, useless
-	public int getSamples(byte [][] buffer, int inputNoteDex) {
-		//setFrequency(inputNoteDex);
-		double ds = 0;
-		short ss = 0;
-		
-		//For each note
-		for(int i = 0; i<NUM_NOTES; i++){
-			if(!vca.noteIsIdle(i)){//if the note is playing
-				for(int j = 0; j<SamplePlayer.SAMPLES_PER_BUFFER*2; j+=2){//fill the buffer with samples
-					ds = getSample(i) * Short.MAX_VALUE / 3;
-					ss = (short) Math.round(ds);
-					
-					buffer[i][j] = (byte)(ss >> 8);
-					buffer[i][j+1] = (byte)(ss & 0xFF);
-				}
-			}
+	public int getSamples(float [][] buffer, int numSamples) {
+		
+		updateTuning();
+		
+		//For each voice that is playing or about to start
+		int[] activeVoices = envelope.getActiveVoices();
+		int activeCount = envelope.getActiveCount();
+		for(int k = 0; k<activeCount; k++){
+			int i = activeVoices[k];
+			renderVoice(i, buffer[i], numSamples);
 		}
 		
-		return SamplePlayer.BUFFER_SIZE;
+		return numSamples;
+	}
+	
+	/* Fill one voice's row with oscillator samples
+	 * <p>
+	 * Only touches the state of that voice, so different voices may be<br>
+	 * rendered on different threads at the same time.
+	 * @param voice The voice to render
+	 * @param row Array to fill with samples
+	 * @param numSamples Number of samples to produce
+	 */
+	public void renderVoice(int voice, float[] row, int numSamples) {
+		int key = envelope.getVoiceKey(voice);
+		for(int j = 0; j<numSamples; j++){//fill the buffer with samples
+			row[j] = (float)getSample(voice, key);
+		}
+	}
+	
+	public int getNumKeys(){
+		return numKeys;
+	}
+	
+	public int getNumVoices(){
+		return numVoices;
 	}
 	
 	public double getA(){
-		return noteFreq[0]*4;
+		return publishedTuning.get().getFrequency(0)*4;
 	}
 	
-	//-1 since tuneDex of 0 is Equal Tempered, and that doesn't have fractions to give
+	//Null for Equal Tempered and other tunings that don't have fractions to give
 	public Fraction[] getIntervals(int tuneDex){
-		return tuneRatios[tuneDex-1];
+		return tuneRatios.get(tuneDex);
+	}
+	
+	public String getTuningName(int tuneDex){
+		return tuningNames.get(tuneDex);
+	}
+	
+	public int getNumTunings(){
+		return tunings.size();
 	}
 	
 	public double[] getFrequencies(){
-		return noteFreq;
+		return publishedTuning.get().getFrequencies();
+	}
+	
+	public long getRetuneCount(){
+		return retuneCount;
+	}
+	
+	public TuningTable getTuningTable(){
+		return tuningTable;
 	}
 
 }
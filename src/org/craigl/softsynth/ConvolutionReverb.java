@@ -0,0 +1,311 @@
+package org.craigl.softsynth;
+
+import java.util.Random;
+
+/**
+ * Convolution Reverb
+ * <p>
+ * Convolves the mix in the last row of the buffer with an impulse<br>
+ * response, such as a recorded room, and adds the result to the dry mix.<br>
+ * Until an impulse response is set the stage passes the mix through.
+ * <p>
+ * The impulse response is cut into partitions of equal length, and the<br>
+ * spectrum of each is worked out when it is set. Every time a partition's<br>
+ * worth of input has arrived it is transformed once, its spectrum is kept<br>
+ * in a delay line, and the output spectrum is the sum of each kept input<br>
+ * spectrum times the impulse spectrum of the same age (overlap-save).<br>
+ * Every partition of input costs the same, two FFTs plus one multiply-add<br>
+ * per impulse partition, so no block ever has to do a large transform.
+ * <p>
+ * The partition is the largest power of two that fits in a block, so each<br>
+ * block runs one or two of them. The reverb is heard one partition late,<br>
+ * which adds to the pre-delay of the room; the dry mix is not delayed.
+ * <p>
+ * setImpulse() does all of the allocation and can be called from any<br>
+ * thread. The audio thread only picks up the finished convolver.
+ */
+
+public class ConvolutionReverb implements SampleProviderIntfc {
+
+	public static final double DEFAULT_WET = 0.3;
+	public static final double DEFAULT_DRY = 1.0;
+
+	// Smallest partition, below this the two transforms cost more than they save
+	private static final int MIN_PARTITION = 16;
+
+	private SampleProviderIntfc provider;
+	private int partition;
+
+	private volatile Convolver convolver;
+	private volatile double wet = DEFAULT_WET;
+	private volatile double dry = DEFAULT_DRY;
+
+	/**
+	 * ConvolutionReverb Class Constructor
+	 *
+	 * @param blockSize Samples per block, decides the partition length
+	 */
+	public ConvolutionReverb(int blockSize) {
+		partition = Math.max(MIN_PARTITION, Integer.highestOneBit(blockSize));
+	}
+
+	public void setSampleProvider(SampleProviderIntfc provider) {
+		this.provider = provider;
+	}
+
+	/**
+	 * Set the impulse response, replacing any earlier one
+	 * <p>
+	 * The impulse is scaled to unit energy, so the reverb of a broad<br>
+	 * sound comes out about as loud as the sound itself times the wet level.
+	 *
+	 * @param impulse The impulse response at the engine's sample rate, or null to turn the reverb off
+	 */
+	public void setImpulse(float[] impulse) {
+
+		if (impulse == null || impulse.length == 0) {
+			convolver = null;
+			return;
+		}
+		double energy = 0;
+		for (float s : impulse) {
+			energy += (double)s * s;
+		}
+		float scale = (energy > 0) ? (float)(1.0 / Math.sqrt(energy)) : 0.0f;
+		convolver = new Convolver(impulse, scale, partition);
+	}
+
+	public boolean hasImpulse() {
+		return convolver != null;
+	}
+
+	/**
+	 * @param wet Level of the reverb added to the mix
+	 */
+	public void setWet(double wet) {
+		this.wet = wet;
+	}
+
+	public double getWet() {
+		return wet;
+	}
+
+	/**
+	 * @param dry Level of the mix itself
+	 */
+	public void setDry(double dry) {
+		this.dry = dry;
+	}
+
+	public double getDry() {
+		return dry;
+	}
+
+	/**
+	 * @return Samples per partition, also the delay of the reverb
+	 */
+	public int getPartition() {
+		return partition;
+	}
+
+	/**
+	 * @return Samples the reverb rings on for after the mix goes quiet, 0 without an impulse
+	 */
+	public int getTailLength() {
+		Convolver c = convolver;
+		return (c == null) ? 0 : (c.numParts + 1) * partition;
+	}
+
+	/**
+	 * @return Partitions in the impulse response, 0 without one
+	 */
+	public int getNumPartitions() {
+		Convolver c = convolver;
+		return (c == null) ? 0 : c.numParts;
+	}
+
+	/**
+	 * Pull a buffer from the mixer and add the reverb to its mix row
+	 *
+	 * @param buffer Voices, then the mix in the last row
+	 * @param numSamples Number of samples to process
+	 *
+	 * @return Count of number of samples processed
+	 */
+	public int getSamples(float[][] buffer, int numSamples) {
+
+		provider.getSamples(buffer, numSamples);
+
+		Convolver c = convolver;
+		if (c != null) {
+			c.process(buffer[buffer.length - 1], numSamples, (float)dry, (float)wet);
+		}
+		return numSamples;
+	}
+
+	/**
+	 * A stand-in room: white noise dying away exponentially, 60 dB<br>
+	 * down by the end
+	 *
+	 * @param sampleRate Samples per second
+	 * @param seconds Length of the impulse
+	 * @param seed Seed for the noise, the same seed gives the same impulse
+	 *
+	 * @return The impulse response
+	 */
+	public static float[] syntheticImpulse(int sampleRate, double seconds, long seed) {
+
+		Random random = new Random(seed);
+		float[] impulse = new float[(int)(sampleRate * seconds)];
+		double decay = Math.log(1000.0) / impulse.length;
+		for (int i = 0; i < impulse.length; i++) {
+			impulse[i] = (float)(random.nextGaussian() * Math.exp(-decay * i));
+		}
+		return impulse;
+	}
+
+	// Everything for one impulse response, built off the audio thread and only
+	// touched by the audio thread once published
+	private static class Convolver {
+
+		private final int size;
+		private final int fftSize;
+		private final int bins;
+		private final int numParts;
+		private final FFT fft;
+
+		// Spectrum of each impulse partition. The input is real so only the lower
+		// half is kept, the upper half is its mirror. A row per partition rather
+		// than one long array lets the JIT vectorize the multiply-add.
+		private final float[][] impulseRe;
+		private final float[][] impulseIm;
+
+		// Spectra of the last numParts input partitions, newest at head
+		private final float[][] inputRe;
+		private final float[][] inputIm;
+		private int head;
+
+		// Previous and current partition of input, and the reverb being played out
+		private final float[] input;
+		private final float[] output;
+		private int fill;
+
+		private final double[] re;
+		private final double[] im;
+		private final float[] accRe;
+		private final float[] accIm;
+
+		Convolver(float[] impulse, float scale, int size) {
+
+			this.size = size;
+			fftSize = size * 2;
+			bins = size + 1;
+			numParts = (impulse.length + size - 1) / size;
+			fft = new FFT(fftSize);
+
+			impulseRe = new float[numParts][bins];
+			impulseIm = new float[numParts][bins];
+			inputRe = new float[numParts][bins];
+			inputIm = new float[numParts][bins];
+			input = new float[fftSize];
+			output = new float[size];
+			re = new double[fftSize];
+			im = new double[fftSize];
+			accRe = new float[bins];
+			accIm = new float[bins];
+
+			// Each partition zero padded to twice its length
+			for (int p = 0; p < numParts; p++) {
+				for (int i = 0; i < fftSize; i++) {
+					int j = p * size + i;
+					re[i] = (i < size && j < impulse.length) ? impulse[j] * scale : 0.0;
+					im[i] = 0.0;
+				}
+				fft.forward(re, im);
+				for (int k = 0; k < bins; k++) {
+					impulseRe[p][k] = (float)re[k];
+					impulseIm[p][k] = (float)im[k];
+				}
+			}
+		}
+
+		void process(float[] mix, int numSamples, float dry, float wet) {
+
+			for (int i = 0; i < numSamples; i++) {
+				float x = mix[i];
+				input[size + fill] = x;
+				mix[i] = dry * x + wet * output[fill];
+				if (++fill == size) {
+					convolvePartition();
+					fill = 0;
+				}
+			}
+		}
+
+		private void convolvePartition() {
+
+			// The last two partitions of input, to spectrum
+			for (int i = 0; i < fftSize; i++) {
+				re[i] = input[i];
+				im[i] = 0.0;
+			}
+			fft.forward(re, im);
+
+			if (--head < 0)
+				head = numParts - 1;
+			float[] newRe = inputRe[head];
+			float[] newIm = inputIm[head];
+			for (int k = 0; k < bins; k++) {
+				newRe[k] = (float)re[k];
+				newIm[k] = (float)im[k];
+			}
+
+			// Each input spectrum times the impulse spectrum of the same age. The
+			// delay line runs from head to the end and then wraps to the start.
+			for (int k = 0; k < bins; k++) {
+				accRe[k] = 0.0f;
+				accIm[k] = 0.0f;
+			}
+			int first = numParts - head;
+			multiplyAdd(head, 0, first);
+			multiplyAdd(0, first, head);
+
+			// Back to samples, only the second half is free of wrap-around
+			for (int k = 0; k < bins; k++) {
+				re[k] = accRe[k];
+				im[k] = accIm[k];
+			}
+			for (int k = bins; k < fftSize; k++) {
+				re[k] = accRe[fftSize - k];
+				im[k] = -accIm[fftSize - k];
+			}
+			fft.inverse(re, im);
+			for (int i = 0; i < size; i++) {
+				output[i] = (float)re[size + i];
+			}
+
+			System.arraycopy(input, size, input, 0, size);
+		}
+
+		// Accumulates count input spectra from slot inputAt on times impulse spectra from partition impulseAt on
+		private void multiplyAdd(int inputAt, int impulseAt, int count) {
+
+			float[] aRe = accRe;
+			float[] aIm = accIm;
+			for (int p = 0; p < count; p++) {
+				float[] xRe = inputRe[inputAt + p];
+				float[] xIm = inputIm[inputAt + p];
+				float[] hRe = impulseRe[impulseAt + p];
+				float[] hIm = impulseIm[impulseAt + p];
+				for (int k = 0; k < bins; k++) {
+					float xr = xRe[k];
+					float xi = xIm[k];
+					float hr = hRe[k];
+					float hi = hIm[k];
+					aRe[k] += xr * hr - xi * hi;
+					aIm[k] += xr * hi + xi * hr;
+				}
+			}
+		}
+	}
+}
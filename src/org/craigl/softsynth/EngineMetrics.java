@@ -0,0 +1,340 @@
+package org.craigl.softsynth;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Engine Metrics
+ * <p>
+ * How close the engine is to missing its deadline, published as a JMX<br>
+ * MBean so it can be watched from JConsole while the synth is playing.
+ * <p>
+ * The audio thread only stores numbers into preallocated fields: the time<br>
+ * each block took to render goes into a ring, and counters are plain field<br>
+ * updates. A daemon thread drains the ring into a histogram a few times a<br>
+ * second, and the percentiles are worked out from that histogram when they<br>
+ * are read.
+ * <p>
+ * The audio thread never waits for the reader, so it can overwrite a slot<br>
+ * while the reader is on it. The reader checks the write count again after<br>
+ * copying the slots out, and counts any slot that may have been overwritten<br>
+ * as dropped rather than using it.
+ * <p>
+ * unregister() stops the aggregating thread and removes the MBean, so an<br>
+ * engine can be thrown away and another registered under the same name.
+ */
+
+public class EngineMetrics implements EngineMetricsMBean {
+
+	public static final String OBJECT_NAME = "org.craigl.softsynth:type=EngineMetrics";
+
+	// Width and count of the histogram buckets, the last one catches everything slower
+	private static final long BUCKET_NANOS = 10000;
+	private static final int NUM_BUCKETS = 10000;
+
+	private static final int RING_SIZE = 4096;
+	private static final long UPDATE_MS = 200;
+
+	private AudioConfig config;
+	private BasicOscillator osc;
+	private EnvelopeGenerator envelope;
+	private SamplePlayer player;
+
+	// Render times written by the audio thread
+	private final AtomicLongArray ring = new AtomicLongArray(RING_SIZE);
+	private final AtomicLong written = new AtomicLong();
+	private long read;
+	// Where update copies the ring before it trusts it, guarded by this
+	private long[] copied = new long[RING_SIZE];
+
+	// Written only by the audio thread
+	private volatile int activeVoices;
+	private volatile int peakActiveVoices;
+	private volatile long clippedSamples;
+	private volatile long limitedSamples;
+	private volatile double lowestLimiterGain = 1.0;
+
+	// Aggregated off the audio thread, guarded by this
+	private long[] histogram = new long[NUM_BUCKETS];
+	private long histogramCount;
+	private long maxNanos;
+	private double dspLoad;
+	private long droppedSamples;
+
+	private Thread aggregator;
+	private ObjectName registeredName;
+
+	/**
+	 * EngineMetrics Class Constructor
+	 *
+	 * @param config Decides the time each block has to render in
+	 * @param osc The oscillator, for the retune count
+	 * @param envelope The envelope generator, for the active voice count
+	 */
+	public EngineMetrics(AudioConfig config, BasicOscillator osc, EnvelopeGenerator envelope) {
+
+		this.config = config;
+		this.osc = osc;
+		this.envelope = envelope;
+	}
+
+	// Called by SamplePlayer.setMetrics, for the underrun and late block counts
+	void setPlayer(SamplePlayer player) {
+		this.player = player;
+	}
+
+	/**
+	 * Registers the MBean with the platform MBean server and starts<br>
+	 * aggregating render times.
+	 */
+	public void register() throws JMException {
+		register(new ObjectName(OBJECT_NAME));
+	}
+
+	/**
+	 * Registers the MBean under OBJECT_NAME with a name key added, so the<br>
+	 * metrics of several engines in one JVM can be told apart.
+	 *
+	 * @param engineName Name of the engine
+	 */
+	public void register(String engineName) throws JMException {
+		register(new ObjectName(OBJECT_NAME + ",name=" + ObjectName.quote(engineName)));
+	}
+
+	private synchronized void register(ObjectName name) throws JMException {
+
+		if (registeredName != null) {
+			throw new IllegalStateException("Already registered as " + registeredName);
+		}
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		registeredName = name;
+
+		aggregator = new Thread() {
+			public void run() {
+				while (true) {
+					update();
+					try {
+						Thread.sleep(UPDATE_MS);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+		aggregator.setName("EngineMetrics");
+		aggregator.setDaemon(true);
+		aggregator.start();
+	}
+
+	/**
+	 * Stops aggregating render times and removes the MBean. Does nothing<br>
+	 * if it isn't registered. The metrics can still be read afterwards.
+	 */
+	public void unregister() throws JMException {
+
+		Thread stopping;
+		ObjectName name;
+		synchronized (this) {
+			stopping = aggregator;
+			name = registeredName;
+			aggregator = null;
+			registeredName = null;
+		}
+		if (name == null) {
+			return;
+		}
+		// Not holding the lock, which update() needs to finish
+		stopping.interrupt();
+		try {
+			stopping.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+	}
+
+	// The remaining record methods are called from the audio thread and don't allocate
+
+	/**
+	 * Records one block
+	 *
+	 * @param renderNanos How long the block took to render
+	 */
+	public void recordBlock(long renderNanos) {
+
+		long w = written.get();
+		ring.lazySet((int)(w & (RING_SIZE - 1)), renderNanos);
+		written.lazySet(w + 1);
+
+		int active = envelope.getActiveCount();
+		activeVoices = active;
+		if (active > peakActiveVoices) {
+			peakActiveVoices = active;
+		}
+	}
+
+	/**
+	 * @param count Samples the limiter turned down
+	 * @param lowestGain The most they were turned down by
+	 */
+	public void addLimited(int count, double lowestGain) {
+		limitedSamples += count;
+		if (lowestGain < lowestLimiterGain) {
+			lowestLimiterGain = lowestGain;
+		}
+	}
+
+	/**
+	 * @param count Samples in the mix that were beyond full scale after the limiter
+	 */
+	public void addClipped(int count) {
+		clippedSamples += count;
+	}
+
+	/**
+	 * Moves the render times recorded since the last call into the histogram
+	 */
+	public synchronized void update() {
+
+		long w = written.get();
+		if (w - read > RING_SIZE) {
+			// The audio thread has lapped us, those times are gone
+			droppedSamples += w - read - RING_SIZE;
+			read = w - RING_SIZE;
+		}
+		if (w == read) {
+			return;
+		}
+
+		for (long r = read; r < w; r++) {
+			copied[(int)(r & (RING_SIZE - 1))] = ring.get((int)(r & (RING_SIZE - 1)));
+		}
+
+		// While we copied, the audio thread may have started on the slots that
+		// were oldest. Any slot it has reached since, or is writing now, is dropped.
+		long firstSafe = written.get() + 1 - RING_SIZE;
+		if (read < firstSafe) {
+			droppedSamples += Math.min(w, firstSafe) - read;
+			read = Math.min(w, firstSafe);
+		}
+		if (w == read) {
+			return;
+		}
+
+		long count = w - read;
+		long sum = 0;
+		for (; read < w; read++) {
+			long nanos = copied[(int)(read & (RING_SIZE - 1))];
+			sum += nanos;
+			histogram[(int)Math.min(nanos / BUCKET_NANOS, NUM_BUCKETS - 1)]++;
+			histogramCount++;
+			if (nanos > maxNanos) {
+				maxNanos = nanos;
+			}
+		}
+		dspLoad = 100.0 * sum / count / blockNanos();
+	}
+
+	private double blockNanos() {
+		return config.getBlockTimeInSecs() * 1e9;
+	}
+
+	// Upper edge of the bucket holding the given fraction of blocks
+	private synchronized long percentileMicros(double fraction) {
+
+		if (histogramCount == 0) {
+			return 0;
+		}
+		long target = (long)Math.ceil(fraction * histogramCount);
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += histogram[i];
+			if (seen >= target) {
+				return (i + 1) * BUCKET_NANOS / 1000;
+			}
+		}
+		return NUM_BUCKETS * BUCKET_NANOS / 1000;
+	}
+
+	public long getBlocksRendered() {
+		return written.get();
+	}
+
+	public long getRenderTimeP50Micros() {
+		return percentileMicros(0.50);
+	}
+
+	public long getRenderTimeP99Micros() {
+		return percentileMicros(0.99);
+	}
+
+	public synchronized long getRenderTimeMaxMicros() {
+		return maxNanos / 1000;
+	}
+
+	public synchronized double getDspLoadPercent() {
+		return dspLoad;
+	}
+
+	public synchronized double getPeakDspLoadPercent() {
+		return 100.0 * maxNanos / blockNanos();
+	}
+
+	public long getUnderruns() {
+		return (player == null) ? 0 : player.getUnderruns();
+	}
+
+	public long getLateBlocks() {
+		return (player == null) ? 0 : player.getLateBlocks();
+	}
+
+	public int getActiveVoices() {
+		return activeVoices;
+	}
+
+	public int getPeakActiveVoices() {
+		return peakActiveVoices;
+	}
+
+	public long getRetuneCount() {
+		return osc.getRetuneCount();
+	}
+
+	public long getClippedSamples() {
+		return clippedSamples;
+	}
+
+	public long getLimitedSamples() {
+		return limitedSamples;
+	}
+
+	public double getPeakGainReductionDb() {
+		return -20.0 * Math.log10(lowestLimiterGain);
+	}
+
+	public double getNoteDelayMeanMicros() {
+		return envelope.getSchedulingStats().getMeanMicros();
+	}
+
+	public double getNoteJitterMicros() {
+		return envelope.getSchedulingStats().getJitterMicros();
+	}
+
+	public synchronized long getDroppedSamples() {
+		return droppedSamples;
+	}
+
+	public synchronized void resetHistogram() {
+		update();
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			histogram[i] = 0;
+		}
+		histogramCount = 0;
+		maxNanos = 0;
+		lowestLimiterGain = 1.0;
+	}
+}
@@ -0,0 +1,51 @@
+package org.craigl.softsynth;
+
+/**
+ * Management interface of EngineMetrics, as seen in JConsole or any<br>
+ * other JMX client. Times are in microseconds.
+ */
+
+public interface EngineMetricsMBean {
+
+	long getBlocksRendered();
+
+	long getRenderTimeP50Micros();
+
+	long getRenderTimeP99Micros();
+
+	long getRenderTimeMaxMicros();
+
+	// Average render time over the last update, relative to the block time
+	double getDspLoadPercent();
+
+	// Slowest single block since the last reset, relative to the block time
+	double getPeakDspLoadPercent();
+
+	long getUnderruns();
+
+	long getLateBlocks();
+
+	int getActiveVoices();
+
+	int getPeakActiveVoices();
+
+	long getRetuneCount();
+
+	long getClippedSamples();
+
+	// Samples the limiter turned down, and the most it turned them down since the last reset
+	long getLimitedSamples();
+
+	double getPeakGainReductionDb();
+
+	// Delay from a note event to its sample, and the spread of that delay
+	double getNoteDelayMeanMicros();
+
+	double getNoteJitterMicros();
+
+	// Render times that arrived faster than they could be aggregated, or were
+	// overwritten while being read
+	long getDroppedSamples();
+
+	void resetHistogram();
+}
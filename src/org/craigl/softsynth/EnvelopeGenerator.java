@@ -1,15 +1,20 @@
 package org.craigl.softsynth;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * Envelope Generator
  * <p>
  * Sometime called an ADSR for attack, decay, sustain and release
  * <p>
  * This component produces a time varying value between 0.0 and 1.0<br>
- * with controlled attack slope, decay slope, sustain value and release slope.
+ * with controlled attack slope, decay slope, sustain value and release slope.<br>
+ * The segments are straight lines, or with CURVE_EXPONENTIAL the curves an<br>
+ * RC circuit charging towards a target just past the segment's end makes.
  * <p>
  * This components getValue method must be called at the sample rate<br>
- * as all timing is derived from the sample timing.
+ * as all timing is derived from the sample timing. The advance method<br>
+ * produces the same values a whole block at a time.
  * <p>
  * This component is built as a state machine. See text for details.
  * 
@@ -24,29 +29,99 @@ public class EnvelopeGenerator {
 	public static final double SUSTAIN_MIN = 0.0;
 	public static final double SUSTAIN_MAX = 1.0;
 	
+	// Shapes of the attack, decay and release segments
+	public static final int CURVE_LINEAR = 0;
+	public static final int CURVE_EXPONENTIAL = 1;
+	
+	// How far past its end point each exponential segment aims, as a fraction
+	// of full scale. Small values give sharp curves, large ones nearly straight.
+	public static final double ATTACK_TARGET_RATIO = 0.3;
+	public static final double DECAY_RELEASE_TARGET_RATIO = 0.0001;
+	
+	// Default size of the voice pool, one voice per key of the on-screen keyboard
+	public static final int DEFAULT_VOICES = BasicOscillator.NUM_NOTES;
+	
 	// Instance data
-	//Where do you set the noteDex?
-	public boolean noteOn[] = new boolean[BasicOscillator.NUM_NOTES];
-	public boolean noteOff[] = new boolean[BasicOscillator.NUM_NOTES];
-	private int count[] = new int[BasicOscillator.NUM_NOTES];
-	public SM_STATE state[] = new SM_STATE[BasicOscillator.NUM_NOTES];;
-	private double sustainLevel;
+	//Key events from other threads, waiting to be assigned to voices
+	private NoteEventQueue events;
+	//Sample offset within the current block of each voice's next noteOn and noteOff, -1 if none
+	private int onOffset[];
+	private int offOffset[];
+	//Velocity of each voice's pending noteOn, and of the note it is playing
+	private double onVelocity[];
+	private double velocity[];
+	//When the previous block started, in System.nanoTime() units
+	private long lastBlockTime;
+	//If set, time is counted in rendered samples instead of read from the system clock
+	private boolean sampleClock;
+	private long clockFrames;
+	private int sampleRate;
+	//Samples rendered before the current block, and the event time of sample 0
+	private long blockFrame;
+	private long streamEpoch;
+	private boolean epochSet;
+	private SchedulingStats schedulingStats;
+	//Per voice events consumed by the state machine, indexed by voice
+	public boolean noteOn[];
+	public boolean noteOff[];
+	private int count[];
+	public int state[];
+	//The last value returned for each voice
+	private double level[];
+	
+	private int numVoices;
+	private int numKeys;
+	private VoicePool voicePool;
+	
+	//Voices that are sounding or about to start, in the order they were triggered.
+	//Only the first activeCount entries are valid. The render chain visits just
+	//these, so idle voices cost nothing.
+	private int activeVoices[];
+	private boolean active[];
+	private int activeCount;
 	private double sampleTime;
-	private int attackCount;
-	private double attackSlope;
-	private int decayMS;
-	private int decayCount;
-	private double decaySlope;
-	private int releaseMS;
-	private int releaseCount;
-	private double releaseSlope;
-	
-	//private int noteDex;
-	//static final int numNotes = 3;
+	
+	//The parameters set by the setters, which each voice takes when it is triggered.
+	//Each change is a whole new set swapped in, so the audio thread never reads
+	//the attack of one setting with the decay of another.
+	private final AtomicReference<EnvelopeParameters> parameters = new AtomicReference<EnvelopeParameters>();
+	//Set to have the sounding voices take the current parameters at the next buffer
+	private volatile boolean reapplyParameters;
+	
+	//The parameters each voice is playing with, indexed by voice like state and count.
+	//Copied out of the published set when the voice is triggered, so the state
+	//machine reads plain arrays.
+	private int voiceAttackCount[];
+	private double voiceAttackSlope[];
+	private int voiceDecayCount[];
+	private double voiceDecaySlope[];
+	private double voiceSustainLevel[];
+	private int voiceReleaseCount[];
+	private double voiceReleaseSlope[];
+	private boolean voiceExponential[];
+	private double voiceAttackMult[];
+	private double voiceAttackOffset[];
+	private double voiceDecayMult[];
+	private double voiceDecayOffset[];
+	private double voiceReleaseMult[];
+	private double voiceReleaseOffset[];
+	//Value of each exponential voice at its current count
+	private double curveValue[];
 	
 	// States of the Envelope Generator
-	public enum SM_STATE {
-		STATE_IDLE, STATE_ATTACK, STATE_DECAY, STATE_SUSTAIN, STATE_RELEASE
+	public static final int STATE_IDLE = 0;
+	public static final int STATE_ATTACK = 1;
+	public static final int STATE_DECAY = 2;
+	public static final int STATE_SUSTAIN = 3;
+	public static final int STATE_RELEASE = 4;
+	
+	/**
+	 * EnvelopeGenerator Class Constructor
+	 * <p>
+	 * Default instance has one voice per key of the on-screen keyboard.
+	 */
+	public EnvelopeGenerator() {
+		this(DEFAULT_VOICES, BasicOscillator.NUM_NOTES, AudioConfig.DEFAULT.getSampleRate());
 	}
 	
 	/**
@@ -54,58 +129,150 @@ public class EnvelopeGenerator {
 	 * <p>
 	 * EnvelopeGenerator instance is initialized and placed into the idle state<br>
 	 * awaiting a noteOn event to begin operation.
+	 * 
+	 * @param numVoices Number of notes that can sound at once
+	 * @param numKeys Number of keys that can be played
+	 * @param sampleRate Samples per second, all timing is derived from it
 	 */
-	public EnvelopeGenerator() {
+	public EnvelopeGenerator(int numVoices, int numKeys, int sampleRate) {
+		
+		this.numVoices = numVoices;
+		this.numKeys = numKeys;
 		
-		for(int i=0;i<BasicOscillator.NUM_NOTES;i++){
+		events = new NoteEventQueue();
+		onOffset = new int[numVoices];
+		offOffset = new int[numVoices];
+		onVelocity = new double[numVoices];
+		velocity = new double[numVoices];
+		schedulingStats = new SchedulingStats();
+		lastBlockTime = 0;
+		sampleClock = false;
+		clockFrames = 0;
+		this.sampleRate = sampleRate;
+		
+		noteOn = new boolean[numVoices];
+		noteOff = new boolean[numVoices];
+		count = new int[numVoices];
+		state = new int[numVoices];
+		level = new double[numVoices];
+		activeVoices = new int[numVoices];
+		active = new boolean[numVoices];
+		voiceAttackCount = new int[numVoices];
+		voiceAttackSlope = new double[numVoices];
+		voiceDecayCount = new int[numVoices];
+		voiceDecaySlope = new double[numVoices];
+		voiceSustainLevel = new double[numVoices];
+		voiceReleaseCount = new int[numVoices];
+		voiceReleaseSlope = new double[numVoices];
+		voiceExponential = new boolean[numVoices];
+		voiceAttackMult = new double[numVoices];
+		voiceAttackOffset = new double[numVoices];
+		voiceDecayMult = new double[numVoices];
+		voiceDecayOffset = new double[numVoices];
+		voiceReleaseMult = new double[numVoices];
+		voiceReleaseOffset = new double[numVoices];
+		curveValue = new double[numVoices];
+		
+		for(int i=0;i<numVoices;i++){
 			noteOn[i] = false;
 			noteOff[i] = false;
 			count[i] = 0;
-			state[i] = SM_STATE.STATE_IDLE;
+			state[i] = STATE_IDLE;
+			active[i] = false;
+			onOffset[i] = -1;
+			offOffset[i] = -1;
+			velocity[i] = 1.0;
 		}
+		activeCount = 0;
+		
+		voicePool = new VoicePool(this, numVoices, numKeys);
 		
-		sustainLevel = 0.0;
+		// The shortest segments until the setters are called
+		parameters.set(new EnvelopeParameters(sampleRate, MS_MIN, MS_MIN, 0.0, MS_MIN, CURVE_LINEAR));
+		for(int i=0;i<numVoices;i++){
+			loadParameters(i);
+		}
 
 		// Calculate sample time
-		sampleTime = (1.0 / SamplePlayer.SAMPLE_RATE);
+		sampleTime = (1.0 / sampleRate);
 	}
 	
 	/**
 	 * This method is called to initiate the envelope generation process.<br>
-	 * The state machine transitions through the attack, decay and sustain<br>
-	 * states then awaits the noteOff event.
+	 * The key is given a voice at the start of the next buffer, whose state<br>
+	 * machine then transitions through the attack, decay and sustain<br>
+	 * states and awaits the noteOff event.
+	 * <p>
+	 * May be called from any thread other than the audio thread.
 	 */
-	public void noteOn(int i) {
-		//System.out.println("on: "+i);
-		noteOn[i] = true;
+	public void noteOn(int key) {
+		noteOn(key, System.nanoTime());
+	}
+	
+	/**
+	 * Starts a note at the given time, see noteOn(int)
+	 * 
+	 * @param key The key being played
+	 * @param time When the key was pressed, in System.nanoTime() units
+	 * 
+	 * @return false if too many events were waiting and this one was dropped
+	 */
+	public boolean noteOn(int key, long time) {
+		return events.offer(NoteEventQueue.NOTE_ON, key, time);
+	}
+	
+	/**
+	 * Starts a note at the given time and loudness, see noteOn(int)
+	 * 
+	 * @param key The key being played
+	 * @param vel Velocity, 0.0 to 1.0, scaling the whole envelope of the note
+	 * @param time When the key was pressed, in System.nanoTime() units
+	 * 
+	 * @return false if too many events were waiting and this one was dropped
+	 */
+	public boolean noteOn(int key, double vel, long time) {
+		return events.offer(NoteEventQueue.NOTE_ON, key, vel, time);
 	}
 
 	/**
 	 * A noteOff event completes the envelope generation process and returns<br>
-	 * the EnvelopeGenerator to the idle state awaiting the next noteOn event.
+	 * the voice playing the key to the idle state awaiting the next noteOn event.
+	 * <p>
+	 * May be called from any thread other than the audio thread.
 	 */
-	public void noteOff(int i) {
-		//System.out.println("off: "+i);
-		noteOff[i] = true;
+	public void noteOff(int key) {
+		noteOff(key, System.nanoTime());
+	}
+	
+	/**
+	 * Releases a note at the given time, see noteOff(int)
+	 * 
+	 * @param key The key being released
+	 * @param time When the key was released, in System.nanoTime() units
+	 * 
+	 * @return false if too many events were waiting and this one was dropped
+	 */
+	public boolean noteOff(int key, long time) {
+		return events.offer(NoteEventQueue.NOTE_OFF, key, time);
 	}
 
 	/**
 	 * Sets the attack time of the generated envelope. This is the time<br>
 	 * for the envelope value to go from 0.0 to 1.0.
 	 * <p>
+	 * Like the other parameters, it applies to notes triggered from now on,<br>
+	 * and to sounding notes only after applyToSoundingVoices.
+	 * <p>
 	 * Valid attack times MS_MIN <= attackTime <= MS_MAX
 	 * 
 	 * @param ms The attack time in milliseconds 
 	 */
 	public void setAttackTimeInMS(int ms) {
 		
-		// Range check incoming value
-		ms = (ms < MS_MIN) ? MS_MIN : ms;
-		ms = (ms > MS_MAX) ? MS_MAX : ms;
-		
-		double temp = ((0.001 * ms) / sampleTime);
-		attackCount = (int) temp;
-		attackSlope = (1.0 / temp);
+		EnvelopeParameters p;
+		do {
+			p = parameters.get();
+		} while (!parameters.compareAndSet(p, p.withAttackTimeInMS(ms)));
 	}
 
 	/**
@@ -118,14 +285,10 @@ public class EnvelopeGenerator {
 	 */
 	public void setDecayTimeInMS(int ms) {
 		
-		// Range check incoming value
-		ms = (ms < MS_MIN) ? MS_MIN : ms;
-		ms = (ms > MS_MAX) ? MS_MAX : ms;
-
-		decayMS = ms;
-		double temp = ((0.001 * ms) / sampleTime);
-		decayCount = (int) temp;
-		decaySlope = ((1.0 - sustainLevel) / temp);
+		EnvelopeParameters p;
+		do {
+			p = parameters.get();
+		} while (!parameters.compareAndSet(p, p.withDecayTimeInMS(ms)));
 	}
 
 	/**
@@ -140,14 +303,11 @@ public class EnvelopeGenerator {
 	 * @param level The sustain level to produce
 	 */	
 	public void setSustainLevel(double level) {
- 
-		// Range check incoming value
-		sustainLevel = (level < SUSTAIN_MIN) ? SUSTAIN_MIN : level;
-		sustainLevel = (level > SUSTAIN_MAX) ? SUSTAIN_MAX : level;
 		
-		// Recalculate decay and release times accordingly
-		setDecayTimeInMS(decayMS);
-		setReleaseTimeInMS(releaseMS);
+		EnvelopeParameters p;
+		do {
+			p = parameters.get();
+		} while (!parameters.compareAndSet(p, p.withSustainLevel(level)));
 	}
 
 	/**
@@ -160,14 +320,53 @@ public class EnvelopeGenerator {
 	 */	
 	public void setReleaseTimeInMS(int ms) {
 		
-		// Range check incoming value
-		ms = (ms < MS_MIN) ? MS_MIN : ms;
-		ms = (ms > MS_MAX) ? MS_MAX : ms;
-
-		releaseMS = ms;
-		double temp = ((0.001 * ms) / sampleTime);
-		releaseCount = (int) temp;
-		releaseSlope = (sustainLevel / temp);
+		EnvelopeParameters p;
+		do {
+			p = parameters.get();
+		} while (!parameters.compareAndSet(p, p.withReleaseTimeInMS(ms)));
+	}
+	
+	/**
+	 * Sets the attack, decay, sustain and release all at once, so no note<br>
+	 * can be triggered with some of them changed and the others not.
+	 * 
+	 * @param attackMS The attack time in milliseconds
+	 * @param decayMS The decay time in milliseconds
+	 * @param sustain The sustain level
+	 * @param releaseMS The release time in milliseconds
+	 */
+	public void setParameters(int attackMS, int decayMS, double sustain, int releaseMS) {
+		
+		EnvelopeParameters p;
+		do {
+			p = parameters.get();
+		} while (!parameters.compareAndSet(p,
+				new EnvelopeParameters(p.getSampleRate(), attackMS, decayMS, sustain, releaseMS, p.getCurve())));
+	}
+	
+	/**
+	 * Chooses straight or exponential attack, decay and release segments.<br>
+	 * Like the other parameters, it applies to notes triggered from now on.
+	 * 
+	 * @param curve CURVE_LINEAR or CURVE_EXPONENTIAL
+	 */
+	public void setCurve(int curve) {
+		
+		EnvelopeParameters p;
+		do {
+			p = parameters.get();
+		} while (!parameters.compareAndSet(p, p.withCurve(curve)));
+	}
+	
+	public int getCurve() {
+		return parameters.get().getCurve();
+	}
+	
+	/**
+	 * @return The parameters notes triggered from now on will take
+	 */
+	public EnvelopeParameters getParameters() {
+		return parameters.get();
 	}
 
 	/**
@@ -189,7 +388,9 @@ public class EnvelopeGenerator {
 					noteOff[noteDex] = false;
 					noteOn[noteDex] = false;
 					count[noteDex] = 0;
-					state[noteDex] = SM_STATE.STATE_ATTACK;
+					state[noteDex] = STATE_ATTACK;
+					loadParameters(noteDex);
+					curveValue[noteDex] = 0.0;
 				}
 				break;
 				
@@ -197,16 +398,22 @@ public class EnvelopeGenerator {
 			case STATE_ATTACK:
 				// Did another noteOn event occur?
 				if (noteOn[noteDex]) {
-					state[noteDex] = SM_STATE.STATE_IDLE;
+					state[noteDex] = STATE_IDLE;
 					break;
 				}
 				// Calculate the value to return
-				value = count[noteDex] * attackSlope;
+				if (voiceExponential[noteDex]) {
+					value = curveValue[noteDex];
+					curveValue[noteDex] = value * voiceAttackMult[noteDex] + voiceAttackOffset[noteDex];
+				}	else	{
+					value = count[noteDex] * voiceAttackSlope[noteDex];
+				}
 
 				// Has attack time elapsed ?
-				if (count[noteDex] >= attackCount) {
+				if (count[noteDex] >= voiceAttackCount[noteDex]) {
 					count[noteDex] = 0;
-					state[noteDex] = SM_STATE.STATE_DECAY;				
+					state[noteDex] = STATE_DECAY;
+					curveValue[noteDex] = 1.0;
 				}	else	{
 					count[noteDex]++;
 				}
@@ -216,15 +423,20 @@ public class EnvelopeGenerator {
 			case STATE_DECAY:
 				// Did another noteOn event occur?
 				if (noteOn[noteDex]) {
-					state[noteDex] = SM_STATE.STATE_IDLE;
+					state[noteDex] = STATE_IDLE;
 					break;
 				}
 				// Calculate the value to return
-				value = 1.0 - (count[noteDex] * decaySlope);
+				if (voiceExponential[noteDex]) {
+					value = curveValue[noteDex];
+					curveValue[noteDex] = value * voiceDecayMult[noteDex] + voiceDecayOffset[noteDex];
+				}	else	{
+					value = 1.0 - (count[noteDex] * voiceDecaySlope[noteDex]);
+				}
 
 				// Has decay time elapsed ?
-				if (count[noteDex] >= decayCount) {
-					state[noteDex] = SM_STATE.STATE_SUSTAIN;
+				if (count[noteDex] >= voiceDecayCount[noteDex]) {
+					state[noteDex] = STATE_SUSTAIN;
 				}	else	{
 					count[noteDex]++;
 				}
@@ -234,18 +446,19 @@ public class EnvelopeGenerator {
 			case STATE_SUSTAIN:
 				// Did another noteOn event occur?
 				if (noteOn[noteDex]) {
-					state[noteDex] = SM_STATE.STATE_IDLE;
+					state[noteDex] = STATE_IDLE;
 					break;
 				}
 				// Get value to return
-				value = sustainLevel;
+				value = voiceSustainLevel[noteDex];
 
 				// Did a noteOff event occur ?
 				if (noteOff[noteDex]) {
 					//System.out.println("Off:"+noteDex);
 					noteOff[noteDex] = false;
 					count[noteDex] = 0;
-					state[noteDex] = SM_STATE.STATE_RELEASE;
+					state[noteDex] = STATE_RELEASE;
+					curveValue[noteDex] = voiceSustainLevel[noteDex];
 				}
 				break;
 				
@@ -253,29 +466,507 @@ public class EnvelopeGenerator {
 			case STATE_RELEASE:
 				// Did another noteOn event occur?
 				if (noteOn[noteDex]) {
-					state[noteDex] = SM_STATE.STATE_IDLE;
+					state[noteDex] = STATE_IDLE;
 					break;
 				}
 				// Calculate the value to return
-				value = sustainLevel - (count[noteDex] * releaseSlope);
-				if (value < 0) {
-					value = 0;
+				if (voiceExponential[noteDex]) {
+					value = curveValue[noteDex];
+					curveValue[noteDex] = value * voiceReleaseMult[noteDex] + voiceReleaseOffset[noteDex];
+				}	else	{
+					value = voiceSustainLevel[noteDex] - (count[noteDex] * voiceReleaseSlope[noteDex]);
+					if (value < 0) {
+						value = 0;
+					}
 				}
 
 				// Has release time elapsed ?
-				if (count[noteDex] >= releaseCount) {
-					state[noteDex] = SM_STATE.STATE_IDLE;
+				if (count[noteDex] >= voiceReleaseCount[noteDex]) {
+					state[noteDex] = STATE_IDLE;
 				}	else	{
 					count[noteDex]++;
 				}
 				break;
 		}
+		level[noteDex] = value;
+		return value;
+	}
+	
+	/**
+	 * Advance the envelope of one voice by a block of samples
+	 * <p>
+	 * Produces exactly the values that numSamples calls to getValue would,<br>
+	 * but handles each attack, decay, sustain or release segment as one run<br>
+	 * instead of switching on the state for every sample.
+	 * <p>
+	 * Note events scheduled by updateActiveVoices take effect at their sample<br>
+	 * offset, so this must be called once per voice per block, for the whole block.<br>
+	 * The values in gain are scaled by the velocity of the note.
+	 * 
+	 * @param noteDex The voice to advance
+	 * @param gain Buffer receiving the envelope values, or null to just advance
+	 * @param offset Position in gain of the first value
+	 * @param numSamples Number of samples to advance
+	 */
+	public void advance(int noteDex, double[] gain, int offset, int numSamples) {
+		
+		int pos = 0;
+		while (pos < numSamples) {
+			// A noteOff and noteOn at the same sample means the noteOn came later
+			if (offOffset[noteDex] == pos) {
+				noteOff[noteDex] = true;
+				offOffset[noteDex] = -1;
+			}
+			if (onOffset[noteDex] == pos) {
+				noteOn[noteDex] = true;
+				onOffset[noteDex] = -1;
+				velocity[noteDex] = onVelocity[noteDex];
+			}
+			
+			// Run up to the next event
+			int next = numSamples;
+			if (offOffset[noteDex] > pos && offOffset[noteDex] < next) {
+				next = offOffset[noteDex];
+			}
+			if (onOffset[noteDex] > pos && onOffset[noteDex] < next) {
+				next = onOffset[noteDex];
+			}
+			runSegments(noteDex, gain, offset + pos, next - pos);
+			if (gain != null && velocity[noteDex] != 1.0) {
+				double v = velocity[noteDex];
+				for (int k = offset + pos; k < offset + next; k++) {
+					gain[k] *= v;
+				}
+			}
+			pos = next;
+		}
+		
+		// A noteOff pushed past the end of the block lands at the start of the next
+		if (offOffset[noteDex] >= numSamples) {
+			offOffset[noteDex] -= numSamples;
+		}
+	}
+	
+	//Runs the state machine for a stretch of samples with no events in it
+	private void runSegments(int noteDex, double[] gain, int offset, int numSamples) {
+		
+		int i = offset;
+		int end = offset + numSamples;
+		double value = level[noteDex];
+		
+		while (i < end) {
+			int c = count[noteDex];
+			int run;
+			
+			// Another noteOn event while sounding drops to idle for one sample
+			if (noteOn[noteDex] && state[noteDex] != STATE_IDLE) {
+				state[noteDex] = STATE_IDLE;
+				value = 0.0;
+				if (gain != null) {
+					gain[i] = value;
+				}
+				i++;
+				continue;
+			}
+			
+			switch (state[noteDex]) {
+				// Process the idle state
+				case STATE_IDLE:
+					value = 0.0;
+					if (noteOn[noteDex]) {
+						noteOff[noteDex] = false;
+						noteOn[noteDex] = false;
+						count[noteDex] = 0;
+						state[noteDex] = STATE_ATTACK;
+						loadParameters(noteDex);
+						curveValue[noteDex] = 0.0;
+						run = 1;
+					}	else	{
+						run = end - i;
+					}
+					if (gain != null) {
+						for (int k = i; k < i + run; k++) {
+							gain[k] = value;
+						}
+					}
+					i += run;
+					break;
+					
+				// Process the attack state, ramping up to the sample where count reaches attackCount
+				case STATE_ATTACK:
+					// The voice's parameters are read once per segment, not per sample
+					int attackCount = voiceAttackCount[noteDex];
+					double attackSlope = voiceAttackSlope[noteDex];
+					run = Math.min(end - i, Math.max(1, attackCount - c + 1));
+					if (voiceExponential[noteDex]) {
+						value = runCurve(noteDex, gain, i, run, voiceAttackMult[noteDex], voiceAttackOffset[noteDex]);
+					}	else	{
+						if (gain != null) {
+							for (int k = 0; k < run; k++) {
+								gain[i + k] = (c + k) * attackSlope;
+							}
+						}
+						value = (c + run - 1) * attackSlope;
+					}
+					i += run;
+					
+					// Has attack time elapsed ?
+					if (c + run - 1 >= attackCount) {
+						count[noteDex] = 0;
+						state[noteDex] = STATE_DECAY;
+						curveValue[noteDex] = 1.0;
+					}	else	{
+						count[noteDex] = c + run;
+					}
+					break;
+					
+				// Process the decay state
+				case STATE_DECAY:
+					int decayCount = voiceDecayCount[noteDex];
+					double decaySlope = voiceDecaySlope[noteDex];
+					run = Math.min(end - i, Math.max(1, decayCount - c + 1));
+					if (voiceExponential[noteDex]) {
+						value = runCurve(noteDex, gain, i, run, voiceDecayMult[noteDex], voiceDecayOffset[noteDex]);
+					}	else	{
+						if (gain != null) {
+							for (int k = 0; k < run; k++) {
+								gain[i + k] = 1.0 - ((c + k) * decaySlope);
+							}
+						}
+						value = 1.0 - ((c + run - 1) * decaySlope);
+					}
+					i += run;
+					
+					// Has decay time elapsed ?
+					if (c + run - 1 >= decayCount) {
+						count[noteDex] = c + run - 1;
+						state[noteDex] = STATE_SUSTAIN;
+					}	else	{
+						count[noteDex] = c + run;
+					}
+					break;
+					
+				// Process the sustain state, holding until a noteOff event
+				case STATE_SUSTAIN:
+					value = voiceSustainLevel[noteDex];
+					if (noteOff[noteDex]) {
+						noteOff[noteDex] = false;
+						count[noteDex] = 0;
+						state[noteDex] = STATE_RELEASE;
+						curveValue[noteDex] = value;
+						run = 1;
+					}	else	{
+						run = end - i;
+					}
+					if (gain != null) {
+						for (int k = i; k < i + run; k++) {
+							gain[k] = value;
+						}
+					}
+					i += run;
+					break;
+					
+				// Process the release state
+				case STATE_RELEASE:
+					int releaseCount = voiceReleaseCount[noteDex];
+					double releaseSlope = voiceReleaseSlope[noteDex];
+					double sustainLevel = voiceSustainLevel[noteDex];
+					run = Math.min(end - i, Math.max(1, releaseCount - c + 1));
+					if (voiceExponential[noteDex]) {
+						value = runCurve(noteDex, gain, i, run, voiceReleaseMult[noteDex], voiceReleaseOffset[noteDex]);
+					}	else	{
+						for (int k = 0; k < run; k++) {
+							value = sustainLevel - ((c + k) * releaseSlope);
+							if (value < 0) {
+								value = 0;
+							}
+							if (gain != null) {
+								gain[i + k] = value;
+							}
+						}
+					}
+					i += run;
+					
+					// Has release time elapsed ?
+					if (c + run - 1 >= releaseCount) {
+						state[noteDex] = STATE_IDLE;
+					}	else	{
+						count[noteDex] = c + run;
+					}
+					break;
+			}
+		}
+		level[noteDex] = value;
+	}
+	
+	//Runs part of an exponential segment, whose end the caller has already found,
+	//and returns the last value. Each sample is one multiply and add.
+	private double runCurve(int noteDex, double[] gain, int offset, int run, double mult, double add) {
+		
+		double v = curveValue[noteDex];
+		double value = v;
+		if (gain != null) {
+			for (int k = offset; k < offset + run; k++) {
+				gain[k] = v;
+				v = v * mult + add;
+			}
+			value = gain[offset + run - 1];
+		}	else	{
+			for (int k = 0; k < run; k++) {
+				value = v;
+				v = v * mult + add;
+			}
+		}
+		curveValue[noteDex] = v;
 		return value;
 	}
 	
-	//If the note is currently producing sound
+	//Gives a voice the current parameters, when it is triggered
+	private void loadParameters(int noteDex) {
+		EnvelopeParameters p = parameters.get();
+		voiceAttackCount[noteDex] = p.attackCount;
+		voiceAttackSlope[noteDex] = p.attackSlope;
+		voiceDecayCount[noteDex] = p.decayCount;
+		voiceDecaySlope[noteDex] = p.decaySlope;
+		voiceSustainLevel[noteDex] = p.getSustainLevel();
+		voiceReleaseCount[noteDex] = p.releaseCount;
+		voiceReleaseSlope[noteDex] = p.releaseSlope;
+		voiceExponential[noteDex] = p.exponential;
+		voiceAttackMult[noteDex] = p.attackMult;
+		voiceAttackOffset[noteDex] = p.attackOffset;
+		voiceDecayMult[noteDex] = p.decayMult;
+		voiceDecayOffset[noteDex] = p.decayOffset;
+		voiceReleaseMult[noteDex] = p.releaseMult;
+		voiceReleaseOffset[noteDex] = p.releaseOffset;
+	}
+	
+	/**
+	 * Has the voices that are already sounding take the current parameters<br>
+	 * at the start of the next buffer, instead of keeping the ones they were<br>
+	 * triggered with. Call after the setters.
+	 * <p>
+	 * May be called from any thread other than the audio thread.
+	 */
+	public void applyToSoundingVoices() {
+		reapplyParameters = true;
+	}
+	
+	//If the voice is currently producing sound
 	public boolean noteIsIdle(int i){
-		return (state[i] == SM_STATE.STATE_IDLE);
+		return (state[i] == STATE_IDLE);
+	}
+	
+	//If the voice has a noteOn event waiting to be applied
+	public boolean voiceIsTriggered(int i){
+		return (noteOn[i] || onOffset[i] >= 0);
+	}
+	
+	//If the voice can be given to a new key
+	public boolean voiceIsFree(int i){
+		return (state[i] == STATE_IDLE && !voiceIsTriggered(i));
+	}
+	
+	//If the voice is fading out after its key was released
+	public boolean voiceIsReleasing(int i){
+		return (state[i] == STATE_RELEASE && !voiceIsTriggered(i));
+	}
+	
+	//The last envelope value of the voice
+	public double getLevel(int i){
+		return level[i];
+	}
+	
+	/**
+	 * Brings the active voice list up to date. Must be called from the audio<br>
+	 * thread at the start of each buffer, before any stage reads the list.
+	 * <p>
+	 * The buffer is taken to cover the time since the previous call, so<br>
+	 * events are played one buffer late but keep their relative timing.
+	 * 
+	 * @param numSamples Number of samples in the buffer
+	 */
+	public void updateActiveVoices(int numSamples) {
+		
+		if (sampleClock) {
+			long start = clockFrames;
+			clockFrames += numSamples;
+			updateActiveVoices(frameToNanos(start), frameToNanos(clockFrames), numSamples);
+			return;
+		}
+		
+		long now = System.nanoTime();
+		if (lastBlockTime == 0) {
+			lastBlockTime = now - (long)(numSamples * sampleTime * 1e9);
+		}
+		updateActiveVoices(lastBlockTime, now, numSamples);
+		lastBlockTime = now;
+	}
+	
+	/**
+	 * Brings the active voice list up to date for a buffer covering the given<br>
+	 * span of time.
+	 * <p>
+	 * Voices whose envelope went idle during the previous buffer are dropped.<br>
+	 * Then every queued event that happened before windowEnd is handed to the<br>
+	 * voice pool and scheduled at the matching sample offset in the buffer,<br>
+	 * and the voices it triggers are added. The list stays the same for every<br>
+	 * stage while a buffer is processed.
+	 * <p>
+	 * A voice takes one noteOn and one noteOff per buffer; further events for<br>
+	 * it stay queued, along with everything after them, for the next buffer.
+	 * 
+	 * @param windowStart Time of the first sample, in System.nanoTime() units
+	 * @param windowEnd Time just after the last sample
+	 * @param numSamples Number of samples in the buffer
+	 */
+	public void updateActiveVoices(long windowStart, long windowEnd, int numSamples) {
+		
+		// Drop voices that finished, keeping the rest in order
+		int n = 0;
+		for (int k = 0; k < activeCount; k++) {
+			int i = activeVoices[k];
+			if (voiceIsFree(i)) {
+				active[i] = false;
+				offOffset[i] = -1;
+				voicePool.voiceFinished(i);
+			}	else	{
+				activeVoices[n++] = i;
+			}
+		}
+		activeCount = n;
+		
+		if (reapplyParameters) {
+			reapplyParameters = false;
+			for (int k = 0; k < activeCount; k++) {
+				int i = activeVoices[k];
+				boolean wasExponential = voiceExponential[i];
+				loadParameters(i);
+				// A voice turning exponential carries on from where it is
+				if (!wasExponential && voiceExponential[i]) {
+					curveValue[i] = level[i];
+				}
+			}
+		}
+		
+		long window = Math.max(1, windowEnd - windowStart);
+		
+		// Sample 0 of the stream happened at the start of the first window
+		if (!epochSet) {
+			streamEpoch = windowStart - frameToNanos(blockFrame);
+			epochSet = true;
+		}
+		
+		// Assign voices to keys pressed and released during the window
+		while (!events.isEmpty()) {
+			long time = events.peekTime();
+			if (time >= windowEnd) {
+				break;
+			}
+			int offset = 0;
+			if (time > windowStart) {
+				offset = (int)(((time - windowStart) * numSamples + window / 2) / window);
+			}
+			offset = Math.min(offset, numSamples - 1);
+			int key = events.peekKey();
+			
+			if (events.peekType() == NoteEventQueue.NOTE_ON) {
+				int v = voicePool.getKeyVoice(key);
+				if (v >= 0 && onOffset[v] >= 0) {
+					break;
+				}
+				v = voicePool.allocate(key);
+				if (v < 0) {
+					break;
+				}
+				onOffset[v] = offset;
+				onVelocity[v] = events.peekValue();
+				if (!active[v]) {
+					active[v] = true;
+					activeVoices[activeCount++] = v;
+				}
+			}	else	{
+				int v = voicePool.getKeyVoice(key);
+				if (v >= 0) {
+					if (offOffset[v] >= 0) {
+						break;
+					}
+					// Keep the noteOff after a noteOn at the same sample
+					if (onOffset[v] >= offset) {
+						offset = onOffset[v] + 1;
+					}
+					offOffset[v] = offset;
+				}
+			}
+			schedulingStats.record(streamEpoch + frameToNanos(blockFrame + offset) - time);
+			events.remove();
+		}
+		blockFrame += numSamples;
+	}
+	
+	/**
+	 * Switches between real time and rendered time.
+	 * <p>
+	 * With the sample clock on, the first sample ever rendered is time 0 and<br>
+	 * each block covers exactly its own length, so events stamped with<br>
+	 * frameToNanos land on the sample they name, however fast blocks are<br>
+	 * rendered. Used for offline rendering.
+	 * 
+	 * @param on True to count time in samples
+	 */
+	public void setSampleClock(boolean on) {
+		sampleClock = on;
+		clockFrames = 0;
+		blockFrame = 0;
+		epochSet = false;
+	}
+	
+	/**
+	 * @return Delay and jitter between note events and the samples they were scheduled on
+	 */
+	public SchedulingStats getSchedulingStats() {
+		return schedulingStats;
+	}
+	
+	/**
+	 * Converts a sample position into the event time used by the sample clock
+	 * 
+	 * @param frame Number of samples since the start
+	 * 
+	 * @return The time in nanoseconds
+	 */
+	public long frameToNanos(long frame) {
+		return Math.round(frame * 1e9 / sampleRate);
+	}
+	
+	/**
+	 * The voices that are currently sounding. Only the first getActiveCount()<br>
+	 * entries are valid and the array must not be modified.
+	 * 
+	 * @return The active voice numbers
+	 */
+	public int[] getActiveVoices() {
+		return activeVoices;
+	}
+	
+	public int getActiveCount() {
+		return activeCount;
+	}
+	
+	//The key the voice is playing
+	public int getVoiceKey(int voice) {
+		return voicePool.getVoiceKey(voice);
+	}
+	
+	public VoicePool getVoicePool() {
+		return voicePool;
+	}
+	
+	public int getNumVoices() {
+		return numVoices;
+	}
+	
+	public int getNumKeys() {
+		return numKeys;
 	}
 	
 }
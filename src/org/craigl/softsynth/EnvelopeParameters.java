@@ -0,0 +1,153 @@
+package org.craigl.softsynth;
+
+/**
+ * Envelope Parameters
+ * <p>
+ * The attack, decay, sustain, release and curve settings of an envelope,<br>
+ * with the counts, slopes and curve steps the state machine runs on worked<br>
+ * out from them. A set is never changed after it is built; the setters of<br>
+ * EnvelopeGenerator build a new one and publish it with a single reference<br>
+ * write, so the audio thread never sees half of a change. A voice copies<br>
+ * the fields of the set it is triggered with into the generator's per voice<br>
+ * arrays, and the state machine only reads those.
+ */
+
+public final class EnvelopeParameters {
+
+	private final int sampleRate;
+	private final int attackMS;
+	private final int decayMS;
+	private final double sustainLevel;
+	private final int releaseMS;
+	private final int curve;
+
+	// Worked out from the settings, read by the envelope generator's state machine.
+	// The linear segments step by the slopes, the exponential ones as value * mult + offset.
+	final int attackCount;
+	final double attackSlope;
+	final int decayCount;
+	final double decaySlope;
+	final int releaseCount;
+	final double releaseSlope;
+	final boolean exponential;
+	final double attackMult;
+	final double attackOffset;
+	final double decayMult;
+	final double decayOffset;
+	final double releaseMult;
+	final double releaseOffset;
+
+	/**
+	 * EnvelopeParameters Class Constructor
+	 * <p>
+	 * Times are limited to MS_MIN to MS_MAX and the sustain level to<br>
+	 * SUSTAIN_MIN to SUSTAIN_MAX, as in EnvelopeGenerator.
+	 *
+	 * @param sampleRate Samples per second, all timing is derived from it
+	 * @param attackMS Time to go from 0.0 to 1.0
+	 * @param decayMS Time to go from 1.0 to the sustain level
+	 * @param sustainLevel Level held between the decay and the noteOff
+	 * @param releaseMS Time to go from the sustain level to 0.0
+	 * @param curve CURVE_LINEAR or CURVE_EXPONENTIAL
+	 */
+	public EnvelopeParameters(int sampleRate, int attackMS, int decayMS, double sustainLevel, int releaseMS, int curve) {
+
+		this.sampleRate = sampleRate;
+		this.attackMS = limitMS(attackMS);
+		this.decayMS = limitMS(decayMS);
+		this.releaseMS = limitMS(releaseMS);
+		this.curve = curve;
+
+		// Range check incoming value
+		sustainLevel = (sustainLevel < EnvelopeGenerator.SUSTAIN_MIN) ? EnvelopeGenerator.SUSTAIN_MIN : sustainLevel;
+		sustainLevel = (sustainLevel > EnvelopeGenerator.SUSTAIN_MAX) ? EnvelopeGenerator.SUSTAIN_MAX : sustainLevel;
+		this.sustainLevel = sustainLevel;
+
+		double sampleTime = (1.0 / sampleRate);
+		exponential = (curve == EnvelopeGenerator.CURVE_EXPONENTIAL);
+
+		double temp = ((0.001 * this.attackMS) / sampleTime);
+		attackCount = (int) temp;
+		attackSlope = (1.0 / temp);
+
+		// Charge from 0.0 towards 1.0 + ratio, reaching 1.0 at attackCount
+		double target = 1.0 + EnvelopeGenerator.ATTACK_TARGET_RATIO;
+		attackMult = stepMultiplier(target, target - 1.0, attackCount);
+		attackOffset = target * (1.0 - attackMult);
+
+		temp = ((0.001 * this.decayMS) / sampleTime);
+		decayCount = (int) temp;
+		decaySlope = ((1.0 - sustainLevel) / temp);
+
+		// Discharge from 1.0 towards sustain - ratio, reaching sustain at decayCount
+		target = sustainLevel - EnvelopeGenerator.DECAY_RELEASE_TARGET_RATIO;
+		decayMult = stepMultiplier(1.0 - target, sustainLevel - target, decayCount);
+		decayOffset = target * (1.0 - decayMult);
+
+		temp = ((0.001 * this.releaseMS) / sampleTime);
+		releaseCount = (int) temp;
+		releaseSlope = (sustainLevel / temp);
+
+		// Discharge from sustain towards -ratio, reaching 0.0 at releaseCount
+		target = -EnvelopeGenerator.DECAY_RELEASE_TARGET_RATIO;
+		releaseMult = stepMultiplier(sustainLevel - target, -target, releaseCount);
+		releaseOffset = target * (1.0 - releaseMult);
+	}
+
+	private static int limitMS(int ms) {
+		ms = (ms < EnvelopeGenerator.MS_MIN) ? EnvelopeGenerator.MS_MIN : ms;
+		ms = (ms > EnvelopeGenerator.MS_MAX) ? EnvelopeGenerator.MS_MAX : ms;
+		return ms;
+	}
+
+	// The multiplier that shrinks the distance to the target from start to end in steps
+	private static double stepMultiplier(double startDistance, double endDistance, int steps) {
+		return Math.pow(endDistance / startDistance, 1.0 / Math.max(1, steps));
+	}
+
+	// Copies with one setting changed
+
+	public EnvelopeParameters withAttackTimeInMS(int ms) {
+		return new EnvelopeParameters(sampleRate, ms, decayMS, sustainLevel, releaseMS, curve);
+	}
+
+	public EnvelopeParameters withDecayTimeInMS(int ms) {
+		return new EnvelopeParameters(sampleRate, attackMS, ms, sustainLevel, releaseMS, curve);
+	}
+
+	public EnvelopeParameters withSustainLevel(double level) {
+		return new EnvelopeParameters(sampleRate, attackMS, decayMS, level, releaseMS, curve);
+	}
+
+	public EnvelopeParameters withReleaseTimeInMS(int ms) {
+		return new EnvelopeParameters(sampleRate, attackMS, decayMS, sustainLevel, ms, curve);
+	}
+
+	public EnvelopeParameters withCurve(int curve) {
+		return new EnvelopeParameters(sampleRate, attackMS, decayMS, sustainLevel, releaseMS, curve);
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getAttackTimeInMS() {
+		return attackMS;
+	}
+
+	public int getDecayTimeInMS() {
+		return decayMS;
+	}
+
+	public double getSustainLevel() {
+		return sustainLevel;
+	}
+
+	public int getReleaseTimeInMS() {
+		return releaseMS;
+	}
+
+	public int getCurve() {
+		return curve;
+	}
+}
@@ -0,0 +1,109 @@
+package org.craigl.softsynth;
+
+/**
+ * Fast Fourier Transform
+ * <p>
+ * In place radix 2 transform of one fixed size. The bit reversal table and<br>
+ * the twiddle factors are worked out by the constructor, so a transform<br>
+ * allocates nothing and can be run on the audio thread.
+ * <p>
+ * The forward transform is unscaled and the inverse is scaled by 1/size,<br>
+ * so inverse(forward(x)) gives back x.
+ */
+
+public class FFT {
+
+	private int size;
+	private int[] reversed;
+	private double[] cos;
+	private double[] sin;
+
+	/**
+	 * FFT Class Constructor
+	 *
+	 * @param size Number of complex points, a power of two
+	 */
+	public FFT(int size) {
+
+		if (size < 2 || Integer.bitCount(size) != 1) {
+			throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+		}
+		this.size = size;
+
+		int bits = Integer.numberOfTrailingZeros(size);
+		reversed = new int[size];
+		for (int i = 0; i < size; i++) {
+			reversed[i] = Integer.reverse(i) >>> (32 - bits);
+		}
+
+		cos = new double[size / 2];
+		sin = new double[size / 2];
+		for (int i = 0; i < size / 2; i++) {
+			cos[i] = Math.cos(2.0 * Math.PI * i / size);
+			sin[i] = Math.sin(2.0 * Math.PI * i / size);
+		}
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Transforms from time to frequency, in place
+	 *
+	 * @param re Real parts, size long
+	 * @param im Imaginary parts, size long
+	 */
+	public void forward(double[] re, double[] im) {
+		transform(re, im, -1.0);
+	}
+
+	/**
+	 * Transforms from frequency back to time, in place
+	 *
+	 * @param re Real parts, size long
+	 * @param im Imaginary parts, size long
+	 */
+	public void inverse(double[] re, double[] im) {
+
+		transform(re, im, 1.0);
+		double scale = 1.0 / size;
+		for (int i = 0; i < size; i++) {
+			re[i] *= scale;
+			im[i] *= scale;
+		}
+	}
+
+	private void transform(double[] re, double[] im, double sign) {
+
+		for (int i = 0; i < size; i++) {
+			int j = reversed[i];
+			if (j > i) {
+				double t = re[i];
+				re[i] = re[j];
+				re[j] = t;
+				t = im[i];
+				im[i] = im[j];
+				im[j] = t;
+			}
+		}
+
+		for (int half = 1; half < size; half <<= 1) {
+			int step = size / (half * 2);
+			for (int start = 0; start < size; start += half * 2) {
+				for (int k = 0; k < half; k++) {
+					double wr = cos[k * step];
+					double wi = sign * sin[k * step];
+					int a = start + k;
+					int b = a + half;
+					double tr = re[b] * wr - im[b] * wi;
+					double ti = re[b] * wi + im[b] * wr;
+					re[b] = re[a] - tr;
+					im[b] = im[a] - ti;
+					re[a] += tr;
+					im[a] += ti;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package org.craigl.softsynth;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Keyboard Mapping
+ * <p>
+ * Which scale degree each key plays, read from a Scala .kbm file. The<br>
+ * mapping repeats every getSize() keys, moving up by the formal octave<br>
+ * degree each time. Keys marked 'x' in the file are silent.
+ * <p>
+ * The synth's base note takes the place of the .kbm middle note, and the<br>
+ * tuning is built on the pitch of the base note, so the MIDI note range<br>
+ * and the reference frequency in the file are not used.
+ */
+
+public class KeyboardMapping {
+
+	// Marks a key with no scale degree. Not -1, as degrees below the base note are negative.
+	public static final int UNMAPPED = Integer.MIN_VALUE;
+
+	private int octaveDegree;
+	private int[] mapping;
+
+	/**
+	 * KeyboardMapping Class Constructor
+	 *
+	 * @param octaveDegree Scale degree the mapping moves up by each time it repeats
+	 * @param mapping Scale degree of each key from the base note, or UNMAPPED
+	 */
+	public KeyboardMapping(int octaveDegree, int[] mapping) {
+
+		if (mapping.length == 0) {
+			throw new IllegalArgumentException("A mapping needs at least one key");
+		}
+		this.octaveDegree = octaveDegree;
+		this.mapping = mapping.clone();
+	}
+
+	/**
+	 * Reads a .kbm file
+	 *
+	 * @param in The file contents
+	 * @param scaleSteps Number of notes in the scale it maps
+	 *
+	 * @return The mapping, or null if the file maps keys straight onto scale degrees
+	 *
+	 * @throws IOException If the file can't be read or isn't a valid mapping
+	 */
+	public static KeyboardMapping parse(Reader in, int scaleSteps) throws IOException {
+
+		BufferedReader reader = new BufferedReader(in);
+
+		//Map size, first note, last note, middle note, reference note, reference frequency, octave degree
+		String[] header = new String[7];
+		for (int i = 0; i < header.length; i++) {
+			String line = ScalaScale.nextLine(reader);
+			if (line == null) {
+				throw new IOException("Missing mapping header");
+			}
+			header[i] = ScalaScale.firstToken(line);
+		}
+		int size = Integer.parseInt(header[0]);
+		int octaveDegree = Integer.parseInt(header[6]);
+		if (octaveDegree == 0) {
+			octaveDegree = scaleSteps;
+		}
+		if (size == 0) {
+			return null;
+		}
+
+		//Keys left off the end of the file are silent
+		int[] mapping = new int[size];
+		for (int i = 0; i < size; i++) {
+			String line = ScalaScale.nextLine(reader);
+			String token = (line == null || line.trim().length() == 0) ? "x" : ScalaScale.firstToken(line);
+			mapping[i] = token.equalsIgnoreCase("x") ? UNMAPPED : Integer.parseInt(token);
+		}
+		return new KeyboardMapping(octaveDegree, mapping);
+	}
+
+	/**
+	 * @param offset Number of keys from the base note, may be negative
+	 *
+	 * @return The scale degree the key plays, counting on past the end of the<br>
+	 *         scale, or UNMAPPED
+	 */
+	public int getDegree(int offset) {
+
+		int degree = mapping[Math.floorMod(offset, mapping.length)];
+		if (degree == UNMAPPED) {
+			return UNMAPPED;
+		}
+		return degree + Math.floorDiv(offset, mapping.length) * octaveDegree;
+	}
+
+	public int getSize() {
+		return mapping.length;
+	}
+
+	public int getOctaveDegree() {
+		return octaveDegree;
+	}
+
+	public int[] getMapping() {
+		return mapping.clone();
+	}
+}
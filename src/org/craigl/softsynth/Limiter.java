@@ -0,0 +1,209 @@
+package org.craigl.softsynth;
+
+import java.util.Arrays;
+
+/**
+ * Look-ahead Peak Limiter
+ * <p>
+ * Turns the mix down just enough to keep it below the ceiling, so notes<br>
+ * can play at full scale and a big chord gets quieter instead of clipping.<br>
+ * Works on the mix in the last row of the buffer, in place.
+ * <p>
+ * The mix is delayed by the look-ahead time, which gives the gain that<br>
+ * long to come down before a peak arrives. The gain each sample needs is<br>
+ * held at the lowest value seen over the look-ahead window, released<br>
+ * slowly, and averaged over the look-ahead window, so it falls as a<br>
+ * smooth ramp that has reached the needed gain by the time the peak is<br>
+ * played. The output never goes over the ceiling.
+ * <p>
+ * The delay line and the window are allocated by the constructor, so the<br>
+ * audio thread never allocates.
+ */
+
+public class Limiter implements SampleProviderIntfc {
+
+	public static final int DEFAULT_LOOKAHEAD_MS = 3;
+	public static final int DEFAULT_RELEASE_MS = 150;
+	// A little under full scale, so rounding to 16 bits can't clip
+	public static final double DEFAULT_CEILING = 0.98;
+
+	private SampleProviderIntfc provider;
+	private EngineMetrics metrics;
+	private SampleKernels kernels = SampleKernels.get();
+
+	private volatile double ceiling = DEFAULT_CEILING;
+	private double releaseCoeff;
+
+	// Samples of delay, also the length of the window and the average
+	private int lookahead;
+
+	// The delayed mix, written and read at the same position
+	private float[] delay;
+	private int delayPos;
+
+	// Ascending run of the gains still in the window, as a ring of
+	// gains and the sample numbers they were needed at
+	private double[] minGain;
+	private long[] minAt;
+	private int minHead;
+	private int minCount;
+	private long sampleNum;
+
+	// Gain after the release, and the running average of the last lookahead of them
+	private double released = 1.0;
+	private double[] history;
+	private int historyPos;
+	private double historySum;
+	private double perSample;
+
+	/**
+	 * Limiter Class Constructor
+	 *
+	 * @param sampleRate Samples per second
+	 */
+	public Limiter(int sampleRate) {
+		this(sampleRate, DEFAULT_LOOKAHEAD_MS, DEFAULT_RELEASE_MS);
+	}
+
+	/**
+	 * Limiter Class Constructor
+	 *
+	 * @param sampleRate Samples per second
+	 * @param lookaheadMS Delay added to the mix, and the time the gain takes to come down
+	 * @param releaseMS Time for the gain to recover most of the way once the peak has passed
+	 */
+	public Limiter(int sampleRate, int lookaheadMS, int releaseMS) {
+
+		lookahead = Math.max(1, (int)((long)sampleRate * lookaheadMS / 1000));
+		delay = new float[lookahead];
+		minGain = new double[lookahead + 1];
+		minAt = new long[lookahead + 1];
+		history = new double[lookahead];
+		Arrays.fill(history, 1.0);
+		historySum = lookahead;
+		perSample = 1.0 / lookahead;
+
+		// One pole rise that covers about 63% of the way in the release time
+		releaseCoeff = 1.0 - Math.exp(-1000.0 / (releaseMS * (double)sampleRate));
+	}
+
+	public void setSampleProvider(SampleProviderIntfc provider) {
+		this.provider = provider;
+	}
+
+	public void setMetrics(EngineMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param ceiling Highest output level, full scale is 1.0
+	 */
+	public void setCeiling(double ceiling) {
+		this.ceiling = ceiling;
+	}
+
+	public double getCeiling() {
+		return ceiling;
+	}
+
+	/**
+	 * @return The delay added to the mix, in samples
+	 */
+	public int getLookahead() {
+		return lookahead;
+	}
+
+	/**
+	 * Pull a buffer from the mixer and limit its mix row
+	 *
+	 * @param buffer Voices, then the mix in the last row
+	 * @param numSamples Number of samples to process
+	 *
+	 * @return Count of number of samples processed
+	 */
+	public int getSamples(float[][] buffer, int numSamples) {
+
+		provider.getSamples(buffer, numSamples);
+		float[] mix = buffer[buffer.length - 1];
+
+		double ceil = ceiling;
+		int limited = 0;
+		double lowest = 1.0;
+		for (int i = 0; i < numSamples; i++) {
+			float in = mix[i];
+
+			// Gain this sample needs, NaN counts as silence
+			double peak = Math.abs(in);
+			double need = (peak > ceil) ? ceil / peak : 1.0;
+
+			// Lowest gain needed by any sample still in the window. Gains that
+			// can never be the lowest again are dropped from the end of the run.
+			long n = sampleNum++;
+			int size = minGain.length;
+			if (minCount > 0 && minAt[minHead] <= n - size) {
+				if (++minHead == size)
+					minHead = 0;
+				minCount--;
+			}
+			int tail = minHead + minCount;
+			if (tail >= size)
+				tail -= size;
+			while (minCount > 0) {
+				int last = (tail == 0) ? size - 1 : tail - 1;
+				if (minGain[last] < need)
+					break;
+				tail = last;
+				minCount--;
+			}
+			minGain[tail] = need;
+			minAt[tail] = n;
+			minCount++;
+			double held = minGain[minHead];
+
+			// Drop at once, rise slowly, and land exactly rather than creep up forever
+			if (held < released) {
+				released = held;
+			} else {
+				released += (held - released) * releaseCoeff;
+				if (held - released < 1e-9)
+					released = held;
+			}
+
+			// Average over the window, which ramps the drop in over the look-ahead
+			historySum += released - history[historyPos];
+			history[historyPos] = released;
+			double gain = historySum * perSample;
+
+			float out = delay[delayPos];
+			delay[delayPos] = in;
+			if (++delayPos == lookahead) {
+				delayPos = 0;
+				historyPos = 0;
+				// Start the running sum afresh, so rounding can't build up
+				historySum = 0;
+				for (int j = 0; j < lookahead; j++)
+					historySum += history[j];
+			} else {
+				historyPos++;
+			}
+
+			mix[i] = (float)(out * gain);
+			if (gain < 1.0) {
+				limited++;
+				if (gain < lowest)
+					lowest = gain;
+			}
+		}
+
+		if (metrics != null) {
+			if (limited > 0)
+				metrics.addLimited(limited, lowest);
+			// Anything left beyond full scale will be clipped when converted to PCM
+			int clipped = kernels.countClipped(mix, numSamples);
+			if (clipped > 0)
+				metrics.addClipped(clipped);
+		}
+
+		return numSamples;
+	}
+}
@@ -0,0 +1,215 @@
+package org.craigl.softsynth;
+
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * MIDI Receiver
+ * <p>
+ * Plays the synth from any javax.sound.midi Transmitter: a keyboard, a<br>
+ * Sequencer playing a file, or a test that sends messages itself. Messages<br>
+ * on every channel are used.
+ * <p>
+ * Each note is stamped with the time its message arrived and scheduled at<br>
+ * the matching sample of the next buffer, so MIDI timing is kept to the<br>
+ * sample instead of being rounded to the user interface's update loop.<br>
+ * The envelope generator's SchedulingStats show how closely it is kept.
+ * <p>
+ * Velocity scales the note, pitch bend moves every key by up to<br>
+ * bendRange semitones from the next buffer on, and while the sustain pedal<br>
+ * is down released keys keep sounding until it comes up.
+ * <p>
+ * A note on that finds the event queue full is dropped, but a note off is<br>
+ * retried until the audio thread has made room, so no note is left stuck.<br>
+ * Both kinds of drop are counted.
+ * <p>
+ * send may be called from any one thread at a time, which is how<br>
+ * a Transmitter delivers messages. Give each device a receiver of its<br>
+ * own; several receivers can play the same envelope generator at once.
+ */
+
+public class MidiReceiver implements Receiver {
+
+	// MIDI note of key 0, A2
+	public static final int DEFAULT_LOWEST_NOTE = 45;
+	public static final double DEFAULT_BEND_RANGE = 2.0;
+
+	private static final int SUSTAIN_PEDAL = 64;
+
+	// The audio thread empties the event queue every buffer, so a full queue
+	// has room again well within this unless the audio thread has stopped
+	private static final long RETRY_NANOS = 250000000L;
+	private static final long RETRY_PARK_NANOS = 100000L;
+
+	private EnvelopeGenerator envelope;
+	private BasicOscillator osc;
+	private int lowestNote;
+	private int numKeys;
+	private double bendRange;
+
+	//Keys that are held down, and keys only sounding because of the pedal
+	private boolean[] held;
+	private boolean[] sustained;
+	private boolean pedalDown;
+
+	// Notes off the end of the keyboard
+	private volatile long ignoredNotes;
+	// Note ons, and note offs even after retrying, dropped because the event queue was full
+	private volatile long droppedNotes;
+	private volatile long droppedNoteOffs;
+	private volatile long notesReceived;
+
+	/**
+	 * MidiReceiver Class Constructor
+	 *
+	 * @param envelope The envelope generator that gets the notes
+	 * @param osc The oscillator that gets pitch bend
+	 */
+	public MidiReceiver(EnvelopeGenerator envelope, BasicOscillator osc) {
+		this(envelope, osc, DEFAULT_LOWEST_NOTE, DEFAULT_BEND_RANGE);
+	}
+
+	/**
+	 * MidiReceiver Class Constructor
+	 *
+	 * @param envelope The envelope generator that gets the notes
+	 * @param osc The oscillator that gets pitch bend
+	 * @param lowestNote MIDI note number played by key 0
+	 * @param bendRange Semitones the pitch wheel bends at either end
+	 */
+	public MidiReceiver(EnvelopeGenerator envelope, BasicOscillator osc, int lowestNote, double bendRange) {
+
+		this.envelope = envelope;
+		this.osc = osc;
+		this.lowestNote = lowestNote;
+		this.bendRange = bendRange;
+
+		numKeys = envelope.getNumKeys();
+		held = new boolean[numKeys];
+		sustained = new boolean[numKeys];
+	}
+
+	/**
+	 * Handles one message. The MIDI timestamp is not used, as devices<br>
+	 * disagree on what it means; the arrival time is used instead.
+	 */
+	public void send(MidiMessage message, long timeStamp) {
+
+		long now = System.nanoTime();
+		if (!(message instanceof ShortMessage)) {
+			return;
+		}
+		ShortMessage sm = (ShortMessage)message;
+
+		switch (sm.getCommand()) {
+			case ShortMessage.NOTE_ON:
+				// A note on with no velocity is a note off
+				if (sm.getData2() > 0) {
+					keyDown(sm.getData1() - lowestNote, sm.getData2() / 127.0, now);
+				} else {
+					keyUp(sm.getData1() - lowestNote, now);
+				}
+				break;
+
+			case ShortMessage.NOTE_OFF:
+				keyUp(sm.getData1() - lowestNote, now);
+				break;
+
+			case ShortMessage.PITCH_BEND:
+				// 14 bits, 8192 is the centre
+				int bend = ((sm.getData2() << 7) | sm.getData1()) - 8192;
+				osc.setPitchBend(Math.pow(2.0, bend / 8192.0 * bendRange / 12.0));
+				break;
+
+			case ShortMessage.CONTROL_CHANGE:
+				if (sm.getData1() == SUSTAIN_PEDAL) {
+					setPedal(sm.getData2() >= 64, now);
+				}
+				break;
+		}
+	}
+
+	private void keyDown(int key, double velocity, long time) {
+
+		notesReceived++;
+		if (key < 0 || key >= numKeys) {
+			ignoredNotes++;
+			return;
+		}
+		if (!envelope.noteOn(key, velocity, time)) {
+			droppedNotes++;
+			return;
+		}
+		held[key] = true;
+		sustained[key] = false;
+	}
+
+	private void keyUp(int key, long time) {
+
+		if (key < 0 || key >= numKeys || !held[key]) {
+			return;
+		}
+		held[key] = false;
+		if (pedalDown) {
+			sustained[key] = true;
+		} else {
+			release(key, time);
+		}
+	}
+
+	private void setPedal(boolean down, long time) {
+
+		pedalDown = down;
+		if (!down) {
+			// Let go of everything the pedal was holding
+			for (int key = 0; key < numKeys; key++) {
+				if (sustained[key]) {
+					sustained[key] = false;
+					release(key, time);
+				}
+			}
+		}
+	}
+
+	// A lost note off would leave the note sounding for good, so wait for room.
+	// The note keeps its original time and starts its release as soon as it can.
+	private void release(int key, long time) {
+
+		long deadline = System.nanoTime() + RETRY_NANOS;
+		while (!envelope.noteOff(key, time)) {
+			if (System.nanoTime() - deadline > 0) {
+				droppedNoteOffs++;
+				return;
+			}
+			LockSupport.parkNanos(RETRY_PARK_NANOS);
+		}
+	}
+
+	public void close() {
+	}
+
+	public long getNotesReceived() {
+		return notesReceived;
+	}
+
+	public long getIgnoredNotes() {
+		return ignoredNotes;
+	}
+
+	/**
+	 * @return Note ons dropped because the event queue was full
+	 */
+	public long getDroppedNotes() {
+		return droppedNotes;
+	}
+
+	/**
+	 * @return Note offs still dropped after retrying, each one leaves a note sounding
+	 */
+	public long getDroppedNoteOffs() {
+		return droppedNoteOffs;
+	}
+}
@@ -0,0 +1,135 @@
+package org.craigl.softsynth;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Note Event Queue
+ * <p>
+ * A lock-free ring of timestamped note events passed from the threads<br>
+ * that produce them (the user interface, MIDI input) to one consumer<br>
+ * thread (the audio thread).
+ * <p>
+ * Events are stored in preallocated parallel arrays, so neither side<br>
+ * allocates. A producer claims a slot by advancing the tail, writes the<br>
+ * event, and then publishes it with an ordered write of the slot's<br>
+ * sequence number; the consumer reads the sequence number before touching<br>
+ * the event, so it always sees a completely written event.
+ */
+
+public class NoteEventQueue {
+
+	// Event types
+	public static final int NOTE_ON = 0;
+	public static final int NOTE_OFF = 1;
+
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private int[] type;
+	private int[] key;
+	private double[] value;
+	private long[] time;
+	//Position + 1 of the event in each slot once it is written
+	private AtomicLongArray published;
+	private int mask;
+
+	//Next slot the consumer reads, only written by the consumer
+	private final AtomicLong head = new AtomicLong();
+	//Next slot a producer claims
+	private final AtomicLong tail = new AtomicLong();
+
+	public NoteEventQueue() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * NoteEventQueue Class Constructor
+	 *
+	 * @param capacity Maximum number of pending events, rounded up to a power of two
+	 */
+	public NoteEventQueue(int capacity) {
+
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		type = new int[size];
+		key = new int[size];
+		value = new double[size];
+		time = new long[size];
+		published = new AtomicLongArray(size);
+		mask = size - 1;
+	}
+
+	/**
+	 * Add an event with a value of 1.0. May be called from any thread.
+	 *
+	 * @param eventType NOTE_ON or NOTE_OFF
+	 * @param eventKey The key the event applies to
+	 * @param eventTime When the event happened, in System.nanoTime() units
+	 *
+	 * @return false if the queue is full and the event was dropped
+	 */
+	public boolean offer(int eventType, int eventKey, long eventTime) {
+		return offer(eventType, eventKey, 1.0, eventTime);
+	}
+
+	/**
+	 * Add an event. May be called from any thread.
+	 *
+	 * @param eventType NOTE_ON or NOTE_OFF
+	 * @param eventKey The key the event applies to
+	 * @param eventValue Velocity of a NOTE_ON, 0.0 to 1.0
+	 * @param eventTime When the event happened, in System.nanoTime() units
+	 *
+	 * @return false if the queue is full and the event was dropped
+	 */
+	public boolean offer(int eventType, int eventKey, double eventValue, long eventTime) {
+
+		long t;
+		do {
+			t = tail.get();
+			if (t - head.get() > mask) {
+				return false;
+			}
+		} while (!tail.compareAndSet(t, t + 1));
+
+		int slot = (int)(t & mask);
+		type[slot] = eventType;
+		key[slot] = eventKey;
+		value[slot] = eventValue;
+		time[slot] = eventTime;
+		published.lazySet(slot, t + 1);
+		return true;
+	}
+
+	// The remaining methods must only be called from the consumer thread
+
+	//False while the oldest event is still being written
+	public boolean isEmpty() {
+		long h = head.get();
+		return published.get((int)(h & mask)) != h + 1;
+	}
+
+	//Type of the oldest event, only valid if the queue is not empty
+	public int peekType() {
+		return type[(int)(head.get() & mask)];
+	}
+
+	//Key of the oldest event, only valid if the queue is not empty
+	public int peekKey() {
+		return key[(int)(head.get() & mask)];
+	}
+
+	//Value of the oldest event, only valid if the queue is not empty
+	public double peekValue() {
+		return value[(int)(head.get() & mask)];
+	}
+
+	//Time of the oldest event, only valid if the queue is not empty
+	public long peekTime() {
+		return time[(int)(head.get() & mask)];
+	}
+
+	//Discard the oldest event, freeing its slot for the producers
+	public void remove() {
+		head.lazySet(head.get() + 1);
+	}
+}
@@ -0,0 +1,165 @@
+package org.craigl.softsynth;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Parallel Voice Renderer
+ * <p>
+ * Takes the place of the VCA as the mixer's sample provider and spreads<br>
+ * the active voices of each buffer over a fixed pool of worker threads.<br>
+ * Each thread runs the oscillator and the envelope for its share of the<br>
+ * voices, writing only to those voices' rows and state, with a gain buffer<br>
+ * of its own. The gain buffers are sized from the VCA's block size up front,<br>
+ * so rendering allocates nothing.
+ * <p>
+ * Every voice is computed exactly as it would be on one thread and the<br>
+ * mixer still sums the rows in active list order, so the output is bit<br>
+ * for bit the same as single threaded rendering.
+ * <p>
+ * The calling thread renders the first share itself. Workers wait on a<br>
+ * barrier between buffers, which also publishes the results to the caller.
+ */
+
+public class ParallelVoiceRenderer implements SampleProviderIntfc {
+
+	private BasicOscillator osc;
+	private VCA vca;
+	private EnvelopeGenerator envelope;
+	private int numThreads;
+
+	private Worker[] workers;
+	private CyclicBarrier start;
+	private CyclicBarrier finish;
+
+	// The buffer being rendered, set before the start barrier
+	private float[][] buffer;
+	private int numSamples;
+	private volatile boolean done;
+
+	/**
+	 * ParallelVoiceRenderer Class Constructor
+	 * <p>
+	 * The oscillator and VCA must already be wired to each other.
+	 *
+	 * @param osc The oscillator producing each voice
+	 * @param vca The VCA shaping each voice
+	 * @param numThreads Threads to render on, including the caller
+	 */
+	public ParallelVoiceRenderer(BasicOscillator osc, VCA vca, int numThreads) {
+
+		this.osc = osc;
+		this.vca = vca;
+		envelope = vca.getEnvelope();
+		this.numThreads = Math.max(1, numThreads);
+
+		start = new CyclicBarrier(this.numThreads);
+		finish = new CyclicBarrier(this.numThreads);
+
+		workers = new Worker[this.numThreads];
+		for (int i = 0; i < this.numThreads; i++) {
+			workers[i] = new Worker(i);
+		}
+		// Worker 0 runs on the caller's thread
+		for (int i = 1; i < this.numThreads; i++) {
+			Thread t = new Thread(workers[i], "Voice renderer " + i);
+			t.setDaemon(true);
+			t.setPriority(Thread.MAX_PRIORITY);
+			t.start();
+		}
+	}
+
+	/**
+	 * Process a buffer full of samples for every active voice
+	 * 
+	 * @param buffer Buffer in which the samples are to be processed
+	 * @param numSamples Number of samples to process for each voice
+	 * 
+	 * @return Count of number of samples processed
+	 */
+	public int getSamples(float[][] buffer, int numSamples) {
+
+		// Refused here rather than on a worker, which has no one to throw to
+		vca.checkBlock(numSamples);
+		
+		// Settle which voices are sounding, and in what tuning, before anything is rendered
+		envelope.updateActiveVoices(numSamples);
+		osc.updateTuning();
+
+		this.buffer = buffer;
+		this.numSamples = numSamples;
+
+		if (numThreads == 1) {
+			workers[0].render();
+			return numSamples;
+		}
+
+		await(start);
+		workers[0].render();
+		await(finish);
+
+		return numSamples;
+	}
+
+	/**
+	 * Stop the worker threads. The renderer can't be used afterwards.
+	 */
+	public void shutdown() {
+		done = true;
+		if (numThreads > 1) {
+			await(start);
+		}
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	private static void await(CyclicBarrier barrier) {
+		try {
+			barrier.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (BrokenBarrierException e) {
+			throw new IllegalStateException("Voice renderer stopped", e);
+		}
+	}
+
+	private class Worker implements Runnable {
+
+		private int index;
+		private double[] gain;
+
+		Worker(int index) {
+			this.index = index;
+			gain = new double[vca.getBlockSize()];
+		}
+
+		// Renders a contiguous slice of the active voice list
+		void render() {
+
+			int[] activeVoices = envelope.getActiveVoices();
+			int activeCount = envelope.getActiveCount();
+			int first = (int)((long)activeCount * index / numThreads);
+			int last = (int)((long)activeCount * (index + 1) / numThreads);
+
+			for (int k = first; k < last; k++) {
+				int v = activeVoices[k];
+				float[] row = buffer[v];
+				osc.renderVoice(v, row, numSamples);
+				vca.processVoice(v, row, gain, numSamples);
+			}
+		}
+
+		public void run() {
+			while (true) {
+				await(start);
+				if (done) {
+					return;
+				}
+				render();
+				await(finish);
+			}
+		}
+	}
+}
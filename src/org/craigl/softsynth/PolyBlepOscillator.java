@@ -0,0 +1,267 @@
+package org.craigl.softsynth;
+
+/**
+ * PolyBlepOscillator Class
+ * <p>
+ * Band limited sawtooth, square/pulse and triangle waves, for bright<br>
+ * timbres that would need dozens of harmonics from the additive oscillator.
+ * <p>
+ * Each wave is the naive waveform with a short polynomial correction added<br>
+ * within one sample of every corner. Jumps get a PolyBLEP (band limited<br>
+ * step) and the corners of the triangle a PolyBLAMP (band limited ramp),<br>
+ * which removes most of the aliasing the naive waves fold back below the<br>
+ * Nyquist frequency. The cost per sample is the same for every key and<br>
+ * does not grow with the number of harmonics.
+ * <p>
+ * The waveform and pulse width are chosen per voice. WAVE_ADDITIVE plays<br>
+ * the harmonics of BasicOscillator.
+ */
+
+public class PolyBlepOscillator extends BasicOscillator {
+
+	public static final int WAVE_ADDITIVE = 0;
+	public static final int WAVE_SAW = 1;
+	public static final int WAVE_SQUARE = 2;
+	public static final int WAVE_TRIANGLE = 3;
+
+	public static final double DEFAULT_PULSE_WIDTH = 0.5;
+
+	//Waveform and pulse width of each voice, set from other threads
+	private int[] waveform;
+	private double[] pulseWidth;
+
+	//Position in the waveform of each voice, as a fraction of one period
+	private double[] phase;
+
+	/**
+	 * PolyBlepOscillator Class Constructor
+	 * <p>
+	 * Every voice plays a sawtooth.
+	 */
+	public PolyBlepOscillator() {
+		this(NUM_NOTES, EnvelopeGenerator.DEFAULT_VOICES, AudioConfig.DEFAULT.getSampleRate());
+	}
+
+	/**
+	 * PolyBlepOscillator Class Constructor
+	 * <p>
+	 * Every voice plays a sawtooth.
+	 *
+	 * @param numKeys Number of keys that can be played, starting from A2
+	 * @param numVoices Number of voices that can sound at once
+	 * @param sampleRate Samples per second
+	 */
+	public PolyBlepOscillator(int numKeys, int numVoices, int sampleRate) {
+		super(numKeys, numVoices, sampleRate);
+
+		waveform = new int[numVoices];
+		pulseWidth = new double[numVoices];
+		phase = new double[numVoices];
+		setWaveform(WAVE_SAW);
+		setPulseWidth(DEFAULT_PULSE_WIDTH);
+	}
+
+	/**
+	 * Chooses the waveform of every voice
+	 *
+	 * @param wave WAVE_ADDITIVE, WAVE_SAW, WAVE_SQUARE or WAVE_TRIANGLE
+	 */
+	public void setWaveform(int wave) {
+		for (int i = 0; i < numVoices; i++) {
+			setWaveform(i, wave);
+		}
+	}
+
+	/**
+	 * Chooses the waveform of one voice, from its next buffer on
+	 *
+	 * @param voice The voice to change
+	 * @param wave WAVE_ADDITIVE, WAVE_SAW, WAVE_SQUARE or WAVE_TRIANGLE
+	 */
+	public void setWaveform(int voice, int wave) {
+		if (wave < WAVE_ADDITIVE || wave > WAVE_TRIANGLE) {
+			throw new IllegalArgumentException("Unknown waveform: " + wave);
+		}
+		waveform[voice] = wave;
+	}
+
+	public int getWaveform(int voice) {
+		return waveform[voice];
+	}
+
+	/**
+	 * Sets the pulse width of the square wave of every voice
+	 *
+	 * @param width Fraction of each period spent high, 0.5 for a square
+	 */
+	public void setPulseWidth(double width) {
+		for (int i = 0; i < numVoices; i++) {
+			setPulseWidth(i, width);
+		}
+	}
+
+	/**
+	 * Sets the pulse width of the square wave of one voice
+	 *
+	 * @param voice The voice to change
+	 * @param width Fraction of each period spent high, kept between 0.05 and 0.95
+	 */
+	public void setPulseWidth(int voice, double width) {
+		pulseWidth[voice] = Math.max(0.05, Math.min(0.95, width));
+	}
+
+	/* Return the next sample of the voice's waveform
+	 * @param voice The voice whose phase is advanced
+	 * @param key The key the voice is playing
+	 * @return Next oscillator sample
+	 */
+	@Override
+	protected double getSample(int voice, int key) {
+
+		int wave = waveform[voice];
+		if (wave == WAVE_ADDITIVE) {
+			return super.getSample(voice, key);
+		}
+
+		double t = phase[voice];
+		double dt = tuning.getPhaseIncrement(key) * bend;
+		double value = sample(wave, t, dt, pulseWidth[voice]);
+
+		t += dt;
+		if (t >= 1.0)
+			t -= 1.0;
+		phase[voice] = t;
+
+		return value;
+	}
+
+	//The tuning and waveform only change between buffers, so each voice runs one tight loop
+	@Override
+	public void renderVoice(int voice, float[] row, int numSamples) {
+
+		int wave = waveform[voice];
+		if (wave == WAVE_ADDITIVE) {
+			super.renderVoice(voice, row, numSamples);
+			return;
+		}
+
+		double dt = tuning.getPhaseIncrement(envelope.getVoiceKey(voice)) * bend;
+		double t = phase[voice];
+		double width = pulseWidth[voice];
+
+		switch (wave) {
+			case WAVE_SAW:
+				for (int j = 0; j < numSamples; j++) {
+					row[j] = (float)saw(t, dt);
+					t += dt;
+					if (t >= 1.0)
+						t -= 1.0;
+				}
+				break;
+			case WAVE_SQUARE:
+				for (int j = 0; j < numSamples; j++) {
+					row[j] = (float)square(t, dt, width);
+					t += dt;
+					if (t >= 1.0)
+						t -= 1.0;
+				}
+				break;
+			case WAVE_TRIANGLE:
+				for (int j = 0; j < numSamples; j++) {
+					row[j] = (float)triangle(t, dt);
+					t += dt;
+					if (t >= 1.0)
+						t -= 1.0;
+				}
+				break;
+		}
+		phase[voice] = t;
+	}
+
+	/**
+	 * One band limited sample, between -1.0 and 1.0 give or take the<br>
+	 * ringing of the corrections
+	 *
+	 * @param wave WAVE_SAW, WAVE_SQUARE or WAVE_TRIANGLE
+	 * @param t Phase, 0.0 to 1.0
+	 * @param dt Phase increment per sample, below 0.5
+	 * @param width Pulse width of the square wave
+	 *
+	 * @return The sample
+	 */
+	public static double sample(int wave, double t, double dt, double width) {
+		switch (wave) {
+			case WAVE_SAW:
+				return saw(t, dt);
+			case WAVE_SQUARE:
+				return square(t, dt, width);
+			case WAVE_TRIANGLE:
+				return triangle(t, dt);
+		}
+		throw new IllegalArgumentException("Not a PolyBLEP waveform: " + wave);
+	}
+
+	/**
+	 * The same waveforms without the corrections, for measuring aliasing
+	 */
+	public static double naiveSample(int wave, double t, double width) {
+		switch (wave) {
+			case WAVE_SAW:
+				return 2.0 * t - 1.0;
+			case WAVE_SQUARE:
+				return (t < width) ? 1.0 : -1.0;
+			case WAVE_TRIANGLE:
+				return 4.0 * Math.abs(t - 0.5) - 1.0;
+		}
+		throw new IllegalArgumentException("Not a PolyBLEP waveform: " + wave);
+	}
+
+	// Falls by 2 as the phase wraps
+	private static double saw(double t, double dt) {
+		return 2.0 * t - 1.0 - blep(t, dt);
+	}
+
+	// Rises by 2 as the phase wraps and falls by 2 at the pulse width
+	private static double square(double t, double dt, double width) {
+		double value = (t < width) ? 1.0 : -1.0;
+		double t2 = t - width;
+		if (t2 < 0.0)
+			t2 += 1.0;
+		return value + blep(t, dt) - blep(t2, dt);
+	}
+
+	// Peaks as the phase wraps and bottoms out half way, where the slope of 4
+	// per period turns around, a change of 8 per period or 8 * dt per sample
+	private static double triangle(double t, double dt) {
+		double value = 4.0 * Math.abs(t - 0.5) - 1.0;
+		double t2 = t + 0.5;
+		if (t2 >= 1.0)
+			t2 -= 1.0;
+		return value + 8.0 * dt * (blamp(t2, dt) - blamp(t, dt));
+	}
+
+	// Correction for a rising step of 2 at phase 0, nonzero within one sample of it
+	private static double blep(double t, double dt) {
+		if (t < dt) {
+			double x = t / dt;
+			return x + x - x * x - 1.0;
+		} else if (t > 1.0 - dt) {
+			double x = (t - 1.0) / dt;
+			return x * x + x + x + 1.0;
+		}
+		return 0.0;
+	}
+
+	// Correction for a bend at phase 0 whose slope grows by 1 per sample
+	private static double blamp(double t, double dt) {
+		double x;
+		if (t < dt) {
+			x = 1.0 - t / dt;
+		} else if (t > 1.0 - dt) {
+			x = 1.0 - (1.0 - t) / dt;
+		} else {
+			return 0.0;
+		}
+		return x * x * x / 6.0;
+	}
+}
@@ -0,0 +1,145 @@
+package org.craigl.softsynth;
+
+/**
+ * SampleKernels Class
+ * <p>
+ * The inner loops that touch every sample of a block: applying a gain<br>
+ * envelope, summing voice rows into the mix, counting clipped samples and<br>
+ * packing the mix into 16 bit big endian PCM.
+ * <p>
+ * These are the plain scalar loops. VectorKernels overrides them with SIMD<br>
+ * versions built on jdk.incubator.vector, which give the same results bit<br>
+ * for bit. get() returns the vector kernels when the JVM was started with<br>
+ * --add-modules jdk.incubator.vector and the scalar ones otherwise. Setting<br>
+ * the system property softsynth.kernels=scalar forces the scalar ones.
+ * <p>
+ * Kernels hold no state, so one instance is shared by every engine.
+ */
+
+public class SampleKernels {
+
+	private static final SampleKernels SCALAR = new SampleKernels();
+	// A full vector of floats at the widest shape, 2048 bits, and a few left for the scalar tail
+	private static final int WARM_UP_SAMPLES = 67;
+	private static final SampleKernels VECTOR = loadVector();
+	private static final SampleKernels DEFAULT = (VECTOR != null && !"scalar".equals(System.getProperty("softsynth.kernels"))) ? VECTOR : SCALAR;
+
+	protected SampleKernels() {
+	}
+
+	/**
+	 * The kernels the engine should use
+	 */
+	public static SampleKernels get() {
+		return DEFAULT;
+	}
+
+	public static SampleKernels scalar() {
+		return SCALAR;
+	}
+
+	/**
+	 * The SIMD kernels, or null if the vector module isn't available
+	 */
+	public static SampleKernels vector() {
+		return VECTOR;
+	}
+
+	//VectorKernels is only named here, so without the module nothing else fails to link
+	private static SampleKernels loadVector() {
+		try {
+			SampleKernels kernels = (SampleKernels) Class.forName("org.craigl.softsynth.VectorKernels").getDeclaredConstructor().newInstance();
+			// Run each kernel once, on enough samples to fill the widest vector, so anything
+			// missing or unsupported shows up now rather than on the audio thread
+			int n = WARM_UP_SAMPLES;
+			float[] row = new float[n];
+			kernels.applyGain(row, new double[n], n);
+			kernels.mix(new float[][] {row}, new int[] {0}, 1, new float[n], n);
+			kernels.countClipped(row, n);
+			kernels.toPCM(row, new byte[n * 2], n);
+			return kernels;
+		} catch (ReflectiveOperationException e) {
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		} catch (RuntimeException e) {
+			// Such as a vector shape or operation this CPU or JDK doesn't support
+			return null;
+		}
+	}
+
+	public String getName() {
+		return "scalar";
+	}
+
+	/**
+	 * Multiply a row of samples by a gain for each sample
+	 *
+	 * @param row Samples, scaled in place
+	 * @param gain Gain for each sample
+	 * @param numSamples Number of samples to scale
+	 */
+	public void applyGain(float[] row, double[] gain, int numSamples) {
+		for (int i = 0; i < numSamples; i++) {
+			row[i] *= gain[i];
+		}
+	}
+
+	/**
+	 * Sum the chosen rows of a buffer into the mix
+	 * <p>
+	 * Rows are added in the order listed, starting from the first.
+	 *
+	 * @param buffer Rows of samples
+	 * @param rows Which rows to add, at least one
+	 * @param count Number of entries of rows to use
+	 * @param mix Destination for the sum, overwritten
+	 * @param numSamples Number of samples to sum
+	 */
+	public void mix(float[][] buffer, int[] rows, int count, float[] mix, int numSamples) {
+		System.arraycopy(buffer[rows[0]], 0, mix, 0, numSamples);
+		for (int k = 1; k < count; k++) {
+			float[] row = buffer[rows[k]];
+			for (int i = 0; i < numSamples; i++)
+				mix[i] += row[i];
+		}
+	}
+
+	/**
+	 * Count the samples beyond full scale
+	 *
+	 * @param samples Samples, full scale is +/-1.0
+	 * @param numSamples Number of samples to check
+	 *
+	 * @return Number of samples above 1.0 or below -1.0
+	 */
+	public int countClipped(float[] samples, int numSamples) {
+		int clipped = 0;
+		for (int i = 0; i < numSamples; i++) {
+			if (samples[i] > 1.0f || samples[i] < -1.0f)
+				clipped++;
+		}
+		return clipped;
+	}
+
+	/**
+	 * Convert float samples to 16 bit signed big endian PCM
+	 * <p>
+	 * Values outside of +/-1.0 are clipped.
+	 *
+	 * @param samples Samples to convert, full scale is +/-1.0
+	 * @param pcm Destination for the packed bytes
+	 * @param numSamples Number of samples to convert
+	 *
+	 * @return Count of number of bytes produced
+	 */
+	public int toPCM(float[] samples, byte[] pcm, int numSamples) {
+		for (int i = 0, j = 0; i < numSamples; i++, j += 2) {
+			short s = SamplePlayer.toShort(samples[i]);
+
+			pcm[j] = (byte) (s >> 8);
+			pcm[j + 1] = (byte) (s & 0xFF);
+		}
+		return numSamples * 2;
+	}
+}
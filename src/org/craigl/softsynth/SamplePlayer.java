@@ -1,6 +1,8 @@
 package org.craigl.softsynth;
 
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import javax.sound.sampled.*;
 
 /**
@@ -15,6 +17,11 @@ import javax.sound.sampled.*;
  * during initialization to prevent glitches that occur until<br>
  * engine is fully initialized.
  * <p>
+ * Rendering and writing to the hardware run on separate threads. This<br>
+ * thread renders blocks into a preallocated ring of PCM blocks, and a<br>
+ * writer thread feeds them to the device, so a slow block only eats into<br>
+ * the ring instead of going straight to the device as a dropout.
+ * <p>
  * See text for details.
  * 
  * @author craiglindley
@@ -25,49 +32,78 @@ public class SamplePlayer extends Thread implements SampleProviderIntfc  {
 	// Count of zeroed buffers to return before switching to real sample provider
 	private static final int TEMP_BUFFER_COUNT = 20;
 	
-	// AudioFormat parameters
-	public  static final int     SAMPLE_RATE = 22050;//22050;
+	// AudioFormat parameters, the sample rate comes from the AudioConfig
 	private static final int     SAMPLE_SIZE = 16;
 	private static final int     CHANNELS = 1;
 	private static final boolean SIGNED = true;
 	private static final boolean BIG_ENDIAN = true;
 
-	// Chunk of audio processed at one time
-	public static final int BUFFER_SIZE = 1000;
-	public static final int SAMPLES_PER_BUFFER = BUFFER_SIZE / 2;
-
-	// Sample time values
-	public static final double SAMPLE_TIME_IN_SECS = 1.0 / SAMPLE_RATE;
-	public static final double BUFFER_TIME_IN_SECS = SAMPLE_TIME_IN_SECS * SAMPLES_PER_BUFFER;
-
 	boolean first;
 	
 	// Instance data
+	private AudioConfig config;
 	private AudioFormat format;
 	private DataLine.Info info;
 	private SourceDataLine auline;
 	private boolean hasRun;
-	private boolean done;
+	private volatile boolean done;
 	private int bufferCount;
-	private byte [][] sampleData = new byte[BasicOscillator.NUM_NOTES+1][BUFFER_SIZE];
+	//One row per voice, plus the mix in the last row
+	private float [][] sampleData;
 	private SampleProviderIntfc provider;
 	private SampleProviderIntfc realProvider;
 	
+	// Rendered blocks waiting for the writer thread
+	private byte [][] ring;
+	private int [] ringBytes;
+	// Blocks put in the ring by the render thread and taken by the writer thread.
+	// Each is only written by its own thread.
+	private final AtomicLong produced = new AtomicLong();
+	private final AtomicLong consumed = new AtomicLong();
+	private volatile Thread writer;
+	
+	// Latency measurement, sums of the ring and device queue length after each write
+	private volatile long queuedFrames;
+	private volatile long queuedWrites;
+	
+	// Render time of each block goes here if set
+	private EngineMetrics metrics;
+	
+	// Blocks the writer had to wait for because the ring was empty
+	private volatile long lateBlocks;
+	// Times the device had played everything it was given before the next block came
+	private volatile long underruns;
+	
 	
 	/**
 	 * SamplePlayer Class Constructor
 	 */
 	public SamplePlayer() {
+		this(AudioConfig.DEFAULT, EnvelopeGenerator.DEFAULT_VOICES);
+	}
+	
+	/**
+	 * SamplePlayer Class Constructor
+	 * 
+	 * @param config Sample rate, block size and device buffer depth to use
+	 * @param numVoices Number of voices the sample provider renders
+	 */
+	public SamplePlayer(AudioConfig config, int numVoices) {
+		
+		this.config = config;
+		sampleData = new float[numVoices+1][config.getBlockSize()];
+		ring = new byte[config.getRingBlocks()][config.getBlockSize() * AudioConfig.BYTES_PER_FRAME];
+		ringBytes = new int[config.getRingBlocks()];
 		
 		// Create the audio format we wish to use
-		format = new AudioFormat(SAMPLE_RATE, SAMPLE_SIZE, CHANNELS, SIGNED, BIG_ENDIAN);
+		format = new AudioFormat(config.getSampleRate(), SAMPLE_SIZE, CHANNELS, SIGNED, BIG_ENDIAN);
 
 		// Create dataline info object describing line format
 		info = new DataLine.Info(SourceDataLine.class, format);
 		
 		// Clear buffer initially
 		for(int i=0;i<sampleData.length;i++)
-			Arrays.fill(sampleData[i], (byte) 0);
+			Arrays.fill(sampleData[i], 0.0f);
 		
 		// Set temp provider so zeroed buffers are consumed initially
 		provider = this;
@@ -84,17 +120,54 @@ public class SamplePlayer extends Thread implements SampleProviderIntfc  {
 	 * This is necessary to prevent glitches on startup.
 	 * 
 	 * @param buffer Buffer in which the samples are to be processed
+	 * @param numSamples Number of samples to process
 	 * 
-	 * @return Count of number of bytes processed
+	 * @return Count of number of samples processed
 	 */
-	public int getSamples(byte [][] buffer, int i) {
+	public int getSamples(float [][] buffer, int numSamples) {
 
 		bufferCount++;
 		if (bufferCount >= TEMP_BUFFER_COUNT) {
 			// Audio system flushed so switch to real sample provider
 			provider = realProvider;
 		}
-		return BUFFER_SIZE;		
+		return numSamples;		
+	}
+	
+	/**
+	 * Convert float samples to 16 bit signed big endian PCM
+	 * <p>
+	 * This is the only place in the chain where samples are packed into bytes.<br>
+	 * Values outside of +/-1.0 are clipped. Uses the vector kernels when the<br>
+	 * JVM has them, see SampleKernels.
+	 * 
+	 * @param samples Samples to convert, full scale is +/-1.0
+	 * @param pcm Destination for the packed bytes
+	 * @param numSamples Number of samples to convert
+	 * 
+	 * @return Count of number of bytes produced
+	 */
+	public static int toPCM(float [] samples, byte [] pcm, int numSamples) {
+		
+		return SampleKernels.get().toPCM(samples, pcm, numSamples);
+	}
+	
+	/**
+	 * Convert one float sample to 16 bits, clipping values outside of +/-1.0
+	 * 
+	 * @param sample The sample, full scale is +/-1.0
+	 * 
+	 * @return The 16 bit sample
+	 */
+	public static short toShort(float sample) {
+		
+		float f = sample * Short.MAX_VALUE;
+		if (f > Short.MAX_VALUE) {
+			f = Short.MAX_VALUE;
+		} else if (f < Short.MIN_VALUE) {
+			f = Short.MIN_VALUE;
+		}
+		return (short) Math.round(f);
 	}
 	
 	/**
@@ -102,26 +175,52 @@ public class SamplePlayer extends Thread implements SampleProviderIntfc  {
 	 * <p>
 	 * This thread will continue to run until either<br>
 	 * the done flag gets set or the sample provider runs<br>
-	 * out of samples. 
+	 * out of samples. It renders blocks into the ring, waiting<br>
+	 * while the ring is full.
 	 * <p>
 	 * NOTE: once the thread ends it cannot be restarted.
 	 */ 
 	public void run() {
 
 		done = false;
-		int nBytesRead = 0;
+		int nSamplesRead = 0;
 
 		try {
 			// Get line to write data to
 			auline = (SourceDataLine) AudioSystem.getLine(info);
-			auline.open(format, BUFFER_SIZE);
+			auline.open(format, config.getDeviceBufferBytes());
 			auline.start();
+			
+			// The device may not give us the buffer size we asked for
+			System.out.println("Audio: " + config + ", device buffer " + auline.getBufferSize() + " bytes, "
+					+ Math.round(getDeviceLatencyInSecs() * 1000) + " ms, " + SampleKernels.get().getName() + " kernels");
 
+			writer = new Thread() {
+				public void run() {
+					writeBlocks();
+				}
+			};
+			writer.setName("SamplePlayer writer");
+			writer.setDaemon(true);
+			writer.setPriority(MAX_PRIORITY);
+			writer.start();
+			
 			while ((! done)) {
-				//The individual n notes get the first n rows in the sampleData
+				// Wait for the writer to free a slot
+				long p = produced.get();
+				if (p - consumed.get() >= ring.length) {
+					LockSupport.park(this);
+					continue;
+				}
+				
+				//The individual n voices get the first n rows in the sampleData
 				//The mixer mixes them into the last row - row n+1
-				nBytesRead = provider.getSamples(sampleData, -1);
-				if (nBytesRead > 0) {
+				long renderStart = System.nanoTime();
+				nSamplesRead = provider.getSamples(sampleData, config.getBlockSize());
+				if (metrics != null && provider == realProvider) {
+					metrics.recordBlock(System.nanoTime() - renderStart);
+				}
+				if (nSamplesRead > 0) {
 					/**
 					System.out.println("SamplesWritten:"+sampleData[0][400]);
 					if(first){
@@ -129,21 +228,112 @@ public class SamplePlayer extends Thread implements SampleProviderIntfc  {
 						first = false;
 					}
 					**/
-					auline.write(sampleData[BasicOscillator.NUM_NOTES], 0, nBytesRead);
+					int slot = (int)(p % ring.length);
+					ringBytes[slot] = toPCM(sampleData[sampleData.length-1], ring[slot], nSamplesRead);
+					produced.set(p + 1);
+					LockSupport.unpark(writer);
 				}
 			}
 		} catch(Exception e) {
 			e.printStackTrace();				
 		} finally {
+			done = true;
+			if (writer != null) {
+				LockSupport.unpark(writer);
+			}
+			System.out.println("Audio stopped: " + lateBlocks + " late blocks, " + underruns + " underruns");
 			//auline.drain();
 			//auline.close();							
 		}
-	}		
+	}
+	
+	// Body of the writer thread, takes blocks from the ring and writes them to the device
+	private void writeBlocks() {
+		
+		while (!done) {
+			long c = consumed.get();
+			if (c == produced.get()) {
+				if (c >= TEMP_BUFFER_COUNT) {
+					lateBlocks++;
+				}
+				// Wait for the render thread, the device plays what it already has meanwhile
+				while (c == produced.get() && !done) {
+					LockSupport.park(this);
+				}
+				continue;
+			}
+			
+			// Nothing left in the device means it has already gone quiet
+			if (c >= TEMP_BUFFER_COUNT && auline.available() >= auline.getBufferSize()) {
+				underruns++;
+			}
+			
+			int slot = (int)(c % ring.length);
+			auline.write(ring[slot], 0, ringBytes[slot]);
+			consumed.set(c + 1);
+			LockSupport.unpark(this);
+			
+			// Audio still waiting in the ring and the device once this block is queued
+			if (c >= TEMP_BUFFER_COUNT) {
+				long ringFrames = (produced.get() - c - 1) * config.getBlockSize();
+				queuedFrames += ringFrames + (auline.getBufferSize() - auline.available()) / AudioConfig.BYTES_PER_FRAME;
+				queuedWrites++;
+			}
+		}
+	}
 	
 	public void setFirst(boolean b){
 		first = b;
 	}
 	
+	public AudioConfig getConfig() {
+		return config;
+	}
+	
+	/**
+	 * The most audio the device can hold, from the buffer size it actually granted
+	 * 
+	 * @return Device buffer length in seconds, 0 if the line is not open yet
+	 */
+	public double getDeviceLatencyInSecs() {
+		if (auline == null) {
+			return 0;
+		}
+		return (double)auline.getBufferSize() / AudioConfig.BYTES_PER_FRAME / config.getSampleRate();
+	}
+	
+	/**
+	 * Measured delay from a key press to hearing it
+	 * <p>
+	 * Events are scheduled one block late, then the block waits behind<br>
+	 * whatever is still queued in the ring and the device. The queue length<br>
+	 * is sampled from the ring and available() after every write and averaged.
+	 * 
+	 * @return Average end-to-end latency in seconds, 0 before any audio is written
+	 */
+	public double getMeasuredLatencyInSecs() {
+		long writes = queuedWrites;
+		if (writes == 0) {
+			return 0;
+		}
+		double queued = (double)queuedFrames / writes / config.getSampleRate();
+		return config.getBlockTimeInSecs() + queued;
+	}
+	
+	/**
+	 * @return Blocks that weren't rendered by the time the writer wanted them
+	 */
+	public long getLateBlocks() {
+		return lateBlocks;
+	}
+	
+	/**
+	 * @return Times the device ran out of audio, each one a dropout
+	 */
+	public long getUnderruns() {
+		return underruns;
+	}
+	
 	/**
 	 * Method to start the sample player
 	 */ 
@@ -156,6 +346,10 @@ public class SamplePlayer extends Thread implements SampleProviderIntfc  {
 		if (realProvider != null) {
 			// Indicate this thread has run 
 			hasRun = true;
+			
+			// Rendering has a deadline every block, so it goes ahead of the user interface
+			setName("SamplePlayer render");
+			setPriority(MAX_PRIORITY);
 
 			// Starter up
 			start();	
@@ -167,6 +361,21 @@ public class SamplePlayer extends Thread implements SampleProviderIntfc  {
 	 */ 
 	public void stopPlayer() {
 		done = true;
+		// Either thread may be waiting on the other
+		LockSupport.unpark(this);
+		if (writer != null) {
+			LockSupport.unpark(writer);
+		}
+	}
+	
+	/**
+	 * Records the render time of every block, set before starting the player
+	 * 
+	 * @param metrics Where to record them
+	 */
+	public void setMetrics(EngineMetrics metrics) {
+		this.metrics = metrics;
+		metrics.setPlayer(this);
 	}
 	
 	/**
@@ -181,15 +390,10 @@ public class SamplePlayer extends Thread implements SampleProviderIntfc  {
 	public void printBuffer(){
 		//For each dt
 		System.out.println("NEW");
-		for(int i=0;i<sampleData[0].length;i+=2){
-			//For each note
+		for(int i=0;i<sampleData[0].length;i++){
+			//For each voice
 			for(int j=0;j<sampleData.length;j++){
-				byte b2 = sampleData[j][i];
-				byte b1 = sampleData[j][i+1];
-	
-				short s=(short)( ((b2&0xFF)<<8) | (b1&0xFF) );
-		
-				System.out.print(s+" ,");
+				System.out.print(sampleData[j][i]+" ,");
 			}
 			
 			System.out.println();
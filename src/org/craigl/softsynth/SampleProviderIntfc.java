@@ -5,6 +5,10 @@ package org.craigl.softsynth;
  * <p>
  * Java code modules are made into sample providers<br>
  * by implementing this single method interface.
+ * <p>
+ * Samples are passed between modules as planar floats, one row per note<br>
+ * with full scale at +/-1.0. They are only converted to PCM bytes once,<br>
+ * by the SamplePlayer just before they are written to the hardware.
  * 
  * @author craiglindley
  */
@@ -14,9 +18,10 @@ public interface SampleProviderIntfc {
 	/**
 	 * Process a buffer full of samples pulled from the sample provider
 	 * 
-	 * @param buffer Buffer in which the samples are to be processed
+	 * @param buffer Buffer in which the samples are to be processed, one row per note
+	 * @param numSamples Number of samples to process in each row
 	 * 
-	 * @return Count of number of bytes processed
+	 * @return Count of number of samples processed
 	 */
-	int getSamples(byte [][] buffer, int i);
+	int getSamples(float [][] buffer, int numSamples);
 }
@@ -0,0 +1,332 @@
+package org.craigl.softsynth;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.apache.commons.math3.fraction.Fraction;
+
+/**
+ * Scala Index
+ * <p>
+ * A directory of Scala .scl files compiled into one binary file, so a<br>
+ * library of thousands of scales can be browsed without parsing them all.<br>
+ * The index is memory-mapped when it is opened and each scale is only<br>
+ * decoded when it is asked for.
+ * <p>
+ * A .kbm file next to a .scl file with the same name is stored with it.
+ * <p>
+ * Layout, big-endian: magic, version, scale count, then the offset of<br>
+ * each record. Each record is the name (length and UTF-8 bytes), the pitch<br>
+ * count, the pitches as doubles, a flag and the pitches as int fraction<br>
+ * pairs if the flag is set, then the mapping size and, if it is not zero,<br>
+ * the octave degree and the degree of each key.
+ */
+
+public class ScalaIndex {
+
+	public static final String INDEX_NAME = "scales.idx";
+
+	private static final int MAGIC = 0x4A53434C;//"JSCL"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 12;
+
+	private MappedByteBuffer data;
+	private int count;
+
+	private ScalaIndex(MappedByteBuffer data) throws IOException {
+
+		this.data = data;
+		if (data.limit() < HEADER_BYTES || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+			throw new IOException("Not a scale index");
+		}
+		count = data.getInt(8);
+	}
+
+	/**
+	 * Maps an index file into memory. Nothing is decoded until it is used.
+	 *
+	 * @param indexFile The file written by compile
+	 *
+	 * @return The index
+	 *
+	 * @throws IOException If the file can't be read or isn't an index
+	 */
+	public static ScalaIndex open(Path indexFile) throws IOException {
+
+		FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ);
+		try {
+			//The mapping stays valid after the channel is closed
+			return new ScalaIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Opens the index in a scale directory, compiling it first if it is<br>
+	 * missing or older than anything under the directory. Every file and<br>
+	 * subdirectory is checked, so adding, removing or editing a scale at<br>
+	 * any depth brings the index up to date.
+	 *
+	 * @param dir Directory of .scl files
+	 *
+	 * @return The index
+	 *
+	 * @throws IOException If the directory or index can't be read or written
+	 */
+	public static ScalaIndex openOrCompile(Path dir) throws IOException {
+
+		Path indexFile = dir.resolve(INDEX_NAME);
+		if (!Files.exists(indexFile)
+				|| Files.getLastModifiedTime(indexFile).compareTo(newestChange(dir, indexFile)) < 0) {
+			compile(dir, indexFile);
+		}
+		return open(indexFile);
+	}
+
+	//Latest modification time of the directory or anything under it, other than the index.
+	//A directory's time changes when a file is added or removed, a file's when it is edited.
+	private static FileTime newestChange(Path dir, Path indexFile) throws IOException {
+
+		FileTime newest = Files.getLastModifiedTime(dir);
+		Stream<Path> walk = Files.walk(dir);
+		try {
+			for (Path p : (Iterable<Path>)walk::iterator) {
+				if (p.equals(indexFile)) {
+					continue;
+				}
+				FileTime time = Files.getLastModifiedTime(p);
+				if (time.compareTo(newest) > 0) {
+					newest = time;
+				}
+			}
+		} finally {
+			walk.close();
+		}
+		return newest;
+	}
+
+	/**
+	 * Parses every .scl file under a directory and writes them to an index
+	 *
+	 * @param dir Directory to search, including subdirectories
+	 * @param indexFile Where to write the index
+	 *
+	 * @return Number of scales written. Files that can't be parsed are skipped.
+	 *
+	 * @throws IOException If the directory can't be read or the index can't be written
+	 */
+	public static int compile(Path dir, Path indexFile) throws IOException {
+
+		List<Path> files = new ArrayList<Path>();
+		Stream<Path> walk = Files.walk(dir);
+		try {
+			walk.filter(p -> p.toString().toLowerCase().endsWith(".scl")).forEach(files::add);
+		} finally {
+			walk.close();
+		}
+		Collections.sort(files);
+
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(records);
+		List<Integer> offsets = new ArrayList<Integer>();
+
+		for (Path file : files) {
+			String fileName = file.getFileName().toString();
+			String baseName = fileName.substring(0, fileName.length() - 4);
+			try {
+				ScalaScale scale = readScale(file, baseName);
+				KeyboardMapping mapping = null;
+				Path kbm = file.resolveSibling(baseName + ".kbm");
+				if (Files.exists(kbm)) {
+					Reader in = Files.newBufferedReader(kbm, StandardCharsets.ISO_8859_1);
+					try {
+						mapping = KeyboardMapping.parse(in, scale.getSteps());
+					} finally {
+						in.close();
+					}
+				}
+				offsets.add(out.size());
+				writeRecord(out, scale, mapping);
+			} catch (IOException | RuntimeException e) {
+				System.err.println("Skipping " + file + ": " + e.getMessage());
+			}
+		}
+		out.flush();
+
+		int start = HEADER_BYTES + 4 * offsets.size();
+		OutputStream file = new BufferedOutputStream(Files.newOutputStream(indexFile));
+		try {
+			DataOutputStream header = new DataOutputStream(file);
+			header.writeInt(MAGIC);
+			header.writeInt(VERSION);
+			header.writeInt(offsets.size());
+			for (int offset : offsets) {
+				header.writeInt(start + offset);
+			}
+			records.writeTo(header);
+			header.flush();
+		} finally {
+			file.close();
+		}
+		return offsets.size();
+	}
+
+	private static ScalaScale readScale(Path file, String baseName) throws IOException {
+
+		Reader in = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1);
+		try {
+			return ScalaScale.parse(in, baseName);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeRecord(DataOutputStream out, ScalaScale scale, KeyboardMapping mapping) throws IOException {
+
+		byte[] name = scale.getName().getBytes(StandardCharsets.UTF_8);
+		out.writeShort(Math.min(name.length, Short.MAX_VALUE));
+		out.write(name, 0, Math.min(name.length, Short.MAX_VALUE));
+
+		double[] pitches = scale.getPitches();
+		out.writeInt(pitches.length);
+		for (double p : pitches) {
+			out.writeDouble(p);
+		}
+
+		Fraction[] fractions = scale.getFractions();
+		out.writeBoolean(fractions != null);
+		if (fractions != null) {
+			for (Fraction f : fractions) {
+				out.writeInt(f.getNumerator());
+				out.writeInt(f.getDenominator());
+			}
+		}
+
+		if (mapping == null) {
+			out.writeInt(0);
+		} else {
+			int[] degrees = mapping.getMapping();
+			out.writeInt(degrees.length);
+			out.writeInt(mapping.getOctaveDegree());
+			for (int d : degrees) {
+				out.writeInt(d);
+			}
+		}
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	private int recordOffset(int i) {
+
+		if (i < 0 || i >= count) {
+			throw new IndexOutOfBoundsException("Scale " + i + " of " + count);
+		}
+		return data.getInt(HEADER_BYTES + 4 * i);
+	}
+
+	/**
+	 * @return The name of a scale, decoded without reading the rest of it
+	 */
+	public String getName(int i) {
+
+		int pos = recordOffset(i);
+		byte[] name = new byte[data.getShort(pos)];
+		for (int j = 0; j < name.length; j++) {
+			name[j] = data.get(pos + 2 + j);
+		}
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return The scale, decoded from the index
+	 */
+	public ScalaScale getScale(int i) {
+
+		int pos = recordOffset(i);
+		String name = getName(i);
+		pos += 2 + data.getShort(pos);
+
+		int steps = data.getInt(pos);
+		pos += 4;
+		double[] pitches = new double[steps];
+		for (int j = 0; j < steps; j++) {
+			pitches[j] = data.getDouble(pos);
+			pos += 8;
+		}
+
+		Fraction[] fractions = null;
+		if (data.get(pos++) != 0) {
+			fractions = new Fraction[steps];
+			for (int j = 0; j < steps; j++) {
+				fractions[j] = new Fraction(data.getInt(pos), data.getInt(pos + 4));
+				pos += 8;
+			}
+		}
+		return new ScalaScale(name, pitches, fractions);
+	}
+
+	/**
+	 * @return The keyboard mapping stored with the scale, or null if it has none
+	 */
+	public KeyboardMapping getMapping(int i) {
+
+		int pos = recordOffset(i);
+		pos += 2 + data.getShort(pos);
+		int steps = data.getInt(pos);
+		pos += 4 + 8 * steps;
+		if (data.get(pos++) != 0) {
+			pos += 8 * steps;
+		}
+
+		int size = data.getInt(pos);
+		if (size == 0) {
+			return null;
+		}
+		int octaveDegree = data.getInt(pos + 4);
+		pos += 8;
+		int[] mapping = new int[size];
+		for (int j = 0; j < size; j++) {
+			mapping[j] = data.getInt(pos);
+			pos += 4;
+		}
+		return new KeyboardMapping(octaveDegree, mapping);
+	}
+
+	/**
+	 * Compiles a directory of scales into an index
+	 *
+	 * @param args Scale directory, and optionally where to write the index
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 1) {
+			System.out.println("Usage: ScalaIndex scaleDir [index]");
+			return;
+		}
+		Path dir = Paths.get(args[0]);
+		Path indexFile = (args.length > 1) ? Paths.get(args[1]) : dir.resolve(INDEX_NAME);
+
+		long start = System.nanoTime();
+		int n = compile(dir, indexFile);
+		System.out.println(n + " scales written to " + indexFile + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+}
@@ -0,0 +1,179 @@
+package org.craigl.softsynth;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+import org.apache.commons.math3.fraction.Fraction;
+
+/**
+ * Scala Scale
+ * <p>
+ * A scale read from a Scala .scl file. Each pitch is given either in cents<br>
+ * (any value containing a '.') or as a ratio such as 3/2 or 2. The last<br>
+ * pitch is the period the scale repeats at, usually the octave 2/1.<br>
+ * Lines starting with '!' are comments.
+ * <p>
+ * Scales may have any number of notes, not just 12.
+ */
+
+public class ScalaScale {
+
+	private String name;
+
+	//Pitch of each note after the first, relative to the first. The last one is the period.
+	private double[] pitches;
+
+	//The same pitches as fractions, or null if any were given in cents
+	private Fraction[] fractions;
+
+	/**
+	 * ScalaScale Class Constructor
+	 *
+	 * @param name Description of the scale
+	 * @param pitches Ratio of each note after 1/1 to 1/1, the period last
+	 * @param fractions The same pitches as fractions, or null
+	 */
+	public ScalaScale(String name, double[] pitches, Fraction[] fractions) {
+
+		if (pitches.length == 0) {
+			throw new IllegalArgumentException("A scale needs at least one pitch");
+		}
+		this.name = name;
+		this.pitches = pitches.clone();
+		this.fractions = (fractions == null) ? null : fractions.clone();
+	}
+
+	/**
+	 * Reads a .scl file
+	 *
+	 * @param in The file contents
+	 * @param fallbackName Used if the file has an empty description, normally the file name
+	 *
+	 * @return The scale
+	 *
+	 * @throws IOException If the file can't be read or isn't a valid scale
+	 */
+	public static ScalaScale parse(Reader in, String fallbackName) throws IOException {
+
+		BufferedReader reader = new BufferedReader(in);
+
+		String description = nextLine(reader);
+		String countLine = nextLine(reader);
+		if (description == null || countLine == null) {
+			throw new IOException("Missing scale header");
+		}
+		int count = Integer.parseInt(firstToken(countLine));
+		if (count < 1) {
+			throw new IOException("Scale has no pitches");
+		}
+
+		double[] pitches = new double[count];
+		Fraction[] fractions = new Fraction[count];
+		for (int i = 0; i < count; i++) {
+			String line = nextLine(reader);
+			if (line == null) {
+				throw new IOException("Expected " + count + " pitches, found " + i);
+			}
+			String token = firstToken(line);
+
+			if (token.indexOf('.') >= 0) {
+				pitches[i] = Math.pow(2.0, Double.parseDouble(token) / 1200.0);
+				fractions = null;
+			} else {
+				String[] parts = token.split("/");
+				long num = Long.parseLong(parts[0]);
+				long den = (parts.length > 1) ? Long.parseLong(parts[1]) : 1;
+				if (num <= 0 || den <= 0) {
+					throw new IOException("Invalid ratio: " + token);
+				}
+				pitches[i] = (double)num / den;
+				if (fractions != null) {
+					if (num > Integer.MAX_VALUE || den > Integer.MAX_VALUE) {
+						fractions = null;
+					} else {
+						fractions[i] = new Fraction((int)num, (int)den);
+					}
+				}
+			}
+		}
+
+		description = description.trim();
+		return new ScalaScale(description.length() > 0 ? description : fallbackName, pitches, fractions);
+	}
+
+	//The next line that isn't a comment, or null at the end of the file
+	static String nextLine(BufferedReader reader) throws IOException {
+
+		String line;
+		do {
+			line = reader.readLine();
+		} while (line != null && line.startsWith("!"));
+		return line;
+	}
+
+	//Anything after the first value on a line is a comment
+	static String firstToken(String line) throws IOException {
+
+		String trimmed = line.trim();
+		if (trimmed.length() == 0) {
+			throw new IOException("Expected a value");
+		}
+		return trimmed.split("\\s+")[0];
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	//Number of notes before the scale repeats
+	public int getSteps() {
+		return pitches.length;
+	}
+
+	/**
+	 * @return Ratio of each note to the first, starting with 1/1 and not including the period
+	 */
+	public double[] getRatios() {
+
+		double[] ratios = new double[pitches.length];
+		ratios[0] = 1.0;
+		for (int i = 1; i < ratios.length; i++) {
+			ratios[i] = pitches[i - 1];
+		}
+		return ratios;
+	}
+
+	public double getPeriod() {
+		return pitches[pitches.length - 1];
+	}
+
+	/**
+	 * @return Each pitch after 1/1 with the period last, as given in the file
+	 */
+	public double[] getPitches() {
+		return pitches.clone();
+	}
+
+	/**
+	 * @return The ratios as fractions, starting with 1/1 and not including<br>
+	 *         the period, or null if the scale has pitches in cents
+	 */
+	public Fraction[] getIntervals() {
+
+		if (fractions == null) {
+			return null;
+		}
+		Fraction[] intervals = new Fraction[fractions.length];
+		intervals[0] = Fraction.ONE;
+		for (int i = 1; i < intervals.length; i++) {
+			intervals[i] = fractions[i - 1];
+		}
+		return intervals;
+	}
+
+	//The pitches as fractions, with the period last, or null
+	Fraction[] getFractions() {
+		return fractions;
+	}
+}
@@ -0,0 +1,70 @@
+package org.craigl.softsynth;
+
+/**
+ * Scheduling Stats
+ * <p>
+ * How far apart the time a note event happened and the time of the sample<br>
+ * it was scheduled on are. The sample's time is counted along the rendered<br>
+ * stream from the first block, so a steady delay is just latency and any<br>
+ * spread in it is jitter.
+ * <p>
+ * Recorded by the audio thread without allocating. Reading while notes are<br>
+ * being scheduled can give values from slightly different moments.
+ */
+
+public class SchedulingStats {
+
+	private volatile long count;
+	// Running mean and sum of squared differences from it, in nanoseconds
+	private volatile double mean;
+	private volatile double m2;
+	private volatile long min = Long.MAX_VALUE;
+	private volatile long max = Long.MIN_VALUE;
+
+	/**
+	 * Records one scheduled event. Called from the audio thread.
+	 *
+	 * @param delayNanos Time of the scheduled sample minus the time of the event
+	 */
+	public void record(long delayNanos) {
+
+		long n = count + 1;
+		double d = delayNanos - mean;
+		double newMean = mean + d / n;
+		m2 += d * (delayNanos - newMean);
+		mean = newMean;
+		if (delayNanos < min) {
+			min = delayNanos;
+		}
+		if (delayNanos > max) {
+			max = delayNanos;
+		}
+		count = n;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	//Average delay from an event to its sample
+	public double getMeanMicros() {
+		return mean / 1000;
+	}
+
+	//Standard deviation of the delay, the jitter
+	public double getJitterMicros() {
+		long n = count;
+		return (n < 2) ? 0 : Math.sqrt(m2 / (n - 1)) / 1000;
+	}
+
+	//Largest minus smallest delay
+	public double getPeakToPeakMicros() {
+		return (count == 0) ? 0 : (max - min) / 1000.0;
+	}
+
+	@Override
+	public String toString() {
+		return count + " events, mean delay " + Math.round(getMeanMicros()) + " us, jitter " + Math.round(getJitterMicros())
+				+ " us, peak to peak " + Math.round(getPeakToPeakMicros()) + " us";
+	}
+}
@@ -0,0 +1,67 @@
+package org.craigl.softsynth;
+
+/**
+ * Tuning Snapshot
+ * <p>
+ * The frequency and phase increment of every key for one tuning and base<br>
+ * note. A snapshot is never changed after it is built, so the audio thread<br>
+ * can read it while the user interface builds the next one.
+ */
+
+public final class TuningSnapshot {
+
+	private final int tuneDex;
+	private final int baseNote;
+
+	//Indexed by key number, where 0 is A2
+	private final double[] freq;
+	//Fraction of a period the waveform advances per sample
+	private final double[] phaseIncrement;
+
+	/**
+	 * TuningSnapshot Class Constructor
+	 *
+	 * @param tuneDex The tuning this snapshot was built from
+	 * @param baseNote The key the tuning is built on
+	 * @param baseFreq Frequency of the base note in Hz
+	 * @param shape Frequency of each key relative to the base note
+	 * @param sampleRate Samples per second
+	 */
+	public TuningSnapshot(int tuneDex, int baseNote, double baseFreq, double[] shape, int sampleRate) {
+
+		this.tuneDex = tuneDex;
+		this.baseNote = baseNote;
+
+		freq = new double[shape.length];
+		phaseIncrement = new double[shape.length];
+		for (int i = 0; i < shape.length; i++) {
+			freq[i] = baseFreq * shape[i];
+			phaseIncrement[i] = freq[i] / sampleRate;
+		}
+	}
+
+	public int getTuning() {
+		return tuneDex;
+	}
+
+	public int getBaseNote() {
+		return baseNote;
+	}
+
+	public int getNumKeys() {
+		return freq.length;
+	}
+
+	public double getFrequency(int key) {
+		return freq[key];
+	}
+
+	public double getPhaseIncrement(int key) {
+		return phaseIncrement[key];
+	}
+
+	//A copy, so callers can't change the snapshot
+	public double[] getFrequencies() {
+		return freq.clone();
+	}
+}
@@ -0,0 +1,107 @@
+package org.craigl.softsynth;
+
+import java.util.ArrayList;
+
+/**
+ * Tuning Table
+ * <p>
+ * Every tuning laid out across the keyboard for each of the 12 base notes,<br>
+ * worked out once when the tuning is added. Each layout gives the frequency<br>
+ * of every key relative to the base note, so retuning is a lookup plus one<br>
+ * multiply per key rather than rebuilding the scale.
+ * <p>
+ * Tuning 0 is always Equal Tempered.
+ */
+
+public class TuningTable {
+
+	public static final int NUM_BASE_NOTES = 12;
+
+	private int numKeys;
+
+	//Indexed by [tuning][baseNote][key]
+	private ArrayList<double[][]> shapes;
+
+	/**
+	 * TuningTable Class Constructor
+	 *
+	 * @param numKeys Number of keys that can be played, starting from A2
+	 */
+	public TuningTable(int numKeys) {
+
+		this.numKeys = numKeys;
+		shapes = new ArrayList<double[][]>();
+
+		//Equal Tempered, every key a semitone from the base note
+		double[][] equal = new double[NUM_BASE_NOTES][numKeys];
+		for (int b = 0; b < NUM_BASE_NOTES; b++) {
+			for (int i = 0; i < numKeys; i++) {
+				equal[b][i] = Math.pow(2.0, (i - b) / 12.0);
+			}
+		}
+		shapes.add(equal);
+	}
+
+	/**
+	 * Lays out a scale that repeats every octave, with one key per note, and<br>
+	 * adds it as a new tuning
+	 *
+	 * @param ratios Ratio of each step of the scale to its first note, starting with 1/1
+	 *
+	 * @return The index of the new tuning
+	 */
+	public int addTuning(double[] ratios) {
+		return addTuning(ratios, 2.0, null);
+	}
+
+	/**
+	 * Lays out a scale for each base note and adds it as a new tuning
+	 *
+	 * @param ratios Ratio of each step of the scale to its first note, starting with 1/1
+	 * @param period Ratio the scale repeats at, usually 2
+	 * @param mapping Scale degree of each key, or null for one key per note
+	 *
+	 * @return The index of the new tuning
+	 */
+	public int addTuning(double[] ratios, double period, KeyboardMapping mapping) {
+
+		double[][] tuning = new double[NUM_BASE_NOTES][];
+		for (int b = 0; b < NUM_BASE_NOTES; b++) {
+			tuning[b] = layout(ratios, period, mapping, b);
+		}
+		shapes.add(tuning);
+		return shapes.size() - 1;
+	}
+
+	private double[] layout(double[] ratios, double period, KeyboardMapping mapping, int baseNote) {
+
+		double[] shape = new double[numKeys];
+		int steps = ratios.length;
+
+		//One scale starts at the base note, the rest of the notes are periods up or down
+		for (int i = 0; i < numKeys; i++) {
+			int degree = (mapping == null) ? i - baseNote : mapping.getDegree(i - baseNote);
+			if (degree == KeyboardMapping.UNMAPPED) {
+				shape[i] = 0;//Silent
+			} else {
+				shape[i] = ratios[Math.floorMod(degree, steps)] * Math.pow(period, Math.floorDiv(degree, steps));
+			}
+		}
+		return shape;
+	}
+
+	/**
+	 * @return Frequency of each key relative to the base note. Must not be changed.
+	 */
+	public double[] getShape(int tuneDex, int baseNote) {
+		return shapes.get(tuneDex)[baseNote];
+	}
+
+	public int getNumTunings() {
+		return shapes.size();
+	}
+
+	public int getNumKeys() {
+		return numKeys;
+	}
+}
@@ -4,29 +4,55 @@ package org.craigl.softsynth;
 * Digital equivalent of a Voltage Controller Amplifier or VCA.
 * <p>
 * VCA is meant to be driven by an Envelope Generator which controls<br>
-* the gain throught the amplifier.
+* the gain throught the amplifier. The envelope generator is an object of<br>
+* its own, so the oscillator, mixer and MIDI input can share it.
 * <p>
 * See text for details.
 * 
 * @author craiglindley
 */
-public class VCA extends EnvelopeGenerator implements SampleProviderIntfc {
-	
-	int noteDex;
+public class VCA implements SampleProviderIntfc {
 	
 	/**
 	 * VCA Class Constructor
 	 * <p>
-	 * Creates an VCA instance and initializes it to default values
+	 * Creates an VCA instance with an envelope generator of its own,<br>
+	 * initialized to default values
 	 */
 	public VCA() {
-		// Set envelope generator to reasonable values
-		setAttackTimeInMS(1);
-		setDecayTimeInMS(1000);
-		setSustainLevel(0.5);
-		setReleaseTimeInMS(2000);
+		this(EnvelopeGenerator.DEFAULT_VOICES, BasicOscillator.NUM_NOTES, AudioConfig.DEFAULT);
+	}
+	
+	/**
+	 * VCA Class Constructor
+	 * <p>
+	 * Creates an VCA instance with an envelope generator of its own,<br>
+	 * for the given polyphony and key range
+	 * 
+	 * @param numVoices Number of notes that can sound at once
+	 * @param numKeys Number of keys that can be played
+	 * @param config Sample rate and block size
+	 */
+	public VCA(int numVoices, int numKeys, AudioConfig config) {
+		this(new EnvelopeGenerator(numVoices, numKeys, config.getSampleRate()), config.getBlockSize());
 		
-		noteDex = 0;
+		// Set envelope generator to reasonable values
+		envelope.setParameters(1, 1000, 0.5, 2000);
+	}
+	
+	/**
+	 * VCA Class Constructor
+	 * <p>
+	 * Creates an VCA instance driven by the given envelope generator,<br>
+	 * which keeps whatever parameters it already has
+	 * 
+	 * @param envelope The envelope generator controlling the gain
+	 * @param blockSize Most samples asked for at a time
+	 */
+	public VCA(EnvelopeGenerator envelope, int blockSize) {
+		this.envelope = envelope;
+		this.blockSize = blockSize;
+		gain = new double[blockSize];
 	}
 	
 	/**
@@ -38,48 +64,81 @@ public class VCA extends EnvelopeGenerator implements SampleProviderIntfc {
 		this.provider = provider;
 	}
 	
-	public void setNote(int i){
-		noteDex = i;
+	public EnvelopeGenerator getEnvelope() {
+		return envelope;
+	}
+	
+	public int getBlockSize() {
+		return blockSize;
 	}
 	
 	/**
 	 * Process a buffer full of samples pulled from the sample provider
+	 * <p>
+	 * The gain buffer is sized when the VCA is built, so nothing is<br>
+	 * allocated on the audio thread and blocks larger than blockSize<br>
+	 * are refused.
 	 * 
 	 * @param buffer Buffer in which the samples are to be processed
+	 * @param numSamples Number of samples to process for each voice
 	 * 
-	 * @return Count of number of bytes processed
+	 * @return Count of number of samples processed
 	 */
-	public int getSamples(byte [][] buffer, int noteDex) {
+	public int getSamples(float [][] buffer, int numSamples) {
+		
+		checkBlock(numSamples);
+		
+		// Settle which voices are sounding before anything is rendered
+		envelope.updateActiveVoices(numSamples);
 		
 		// Grab samples to manipulate from this module's sample provider
-		provider.getSamples(buffer, noteDex);
+		provider.getSamples(buffer, numSamples);
 		
-		byte b2 = 0;
-		byte b1 = 0;
-		short s = 0;
+		//For each active voice, compute a block of envelope values and apply it
+		int[] activeVoices = envelope.getActiveVoices();
+		int activeCount = envelope.getActiveCount();
+		for(int k = 0; k<activeCount; k++){
+			int j = activeVoices[k];
+			processVoice(j, buffer[j], gain, numSamples);
+		}
+		return numSamples;
+	}
+	
+	/**
+	 * Apply the envelope to one voice's row of samples
+	 * <p>
+	 * Only touches the state of that voice, so different voices may be<br>
+	 * processed on different threads at the same time, each with its own<br>
+	 * gain buffer.
+	 * 
+	 * @param voice The voice to process
+	 * @param row The voice's samples, scaled in place
+	 * @param gain Scratch space for at least numSamples envelope values
+	 * @param numSamples Number of samples to process
+	 */
+	public void processVoice(int voice, float[] row, double[] gain, int numSamples) {
 		
-		//For each dt in the buffer
-		for (int i = 0; i < SamplePlayer.SAMPLES_PER_BUFFER*2; i+=2) {
-			//For each note, process the samples
-			for(int j = 0; j<BasicOscillator.NUM_NOTES; j++){
-				// Get a sample to process
-				b2 = buffer[j][i];
-				b1 = buffer[j][i+1];
+		envelope.advance(voice, gain, 0, numSamples);
+		kernels.applyGain(row, gain, numSamples);
+	}
 	
-				// Convert bytes into short sample
-				s=(short)( ((b2&0xFF)<<8) | (b1&0xFF) );
-				
-				// Apply envelope value to sample
-				s *= getValue(j);
-				
-				// Store the processed sample
-				buffer[j][i] = (byte)(s >> 8);
-				buffer[j][i+1] = (byte)(s & 0xFF);
-			}
+	/**
+	 * Refuse a block larger than the gain buffers were sized for
+	 * 
+	 * @param numSamples Number of samples about to be processed
+	 */
+	public void checkBlock(int numSamples) {
+		
+		if (numSamples > blockSize) {
+			throw new IllegalArgumentException("Block of " + numSamples + " samples, the VCA was built for " + blockSize);
 		}
-		return SamplePlayer.BUFFER_SIZE;
 	}
 	
 	// Instance data
+	private EnvelopeGenerator envelope;
 	private SampleProviderIntfc provider;
+	private SampleKernels kernels = SampleKernels.get();
+	private int blockSize;
+	//Envelope values for the voice being processed
+	private double[] gain;
 }
@@ -0,0 +1,181 @@
+package org.craigl.softsynth;
+
+import java.util.Arrays;
+
+/**
+ * Voice Pool
+ * <p>
+ * Assigns a fixed number of voices to an arbitrary range of keys, so the<br>
+ * cost of rendering is bounded by the voice count and not by the number<br>
+ * of keys that can be played.
+ * <p>
+ * A key that is pressed again while its voice is still sounding retriggers<br>
+ * that voice. Otherwise a free voice is used, and if there is none a voice<br>
+ * is stolen: first from the voices in their release stage, picked by the<br>
+ * steal policy, and failing that the oldest voice overall.
+ * <p>
+ * All methods are called from the audio thread.
+ */
+
+public class VoicePool {
+
+	// Steal policies for voices in release
+	public static final int STEAL_OLDEST = 0;
+	public static final int STEAL_QUIETEST = 1;
+
+	private EnvelopeGenerator envelope;
+	private int numVoices;
+	private int numKeys;
+	private int stealPolicy;
+
+	//The key each voice is playing, -1 if it has never been used
+	private int[] voiceKey;
+	//The voice holding each key, -1 if the key is not sounding
+	private int[] keyVoice;
+	//When each voice was last triggered, larger is newer
+	private long[] voiceAge;
+	private long triggerCount;
+
+	/**
+	 * VoicePool Class Constructor
+	 *
+	 * @param envelope The envelope generator whose voices are assigned
+	 * @param numVoices Number of voices that can sound at once
+	 * @param numKeys Number of keys that can be played
+	 */
+	public VoicePool(EnvelopeGenerator envelope, int numVoices, int numKeys) {
+
+		this.envelope = envelope;
+		this.numVoices = numVoices;
+		this.numKeys = numKeys;
+
+		voiceKey = new int[numVoices];
+		keyVoice = new int[numKeys];
+		voiceAge = new long[numVoices];
+		Arrays.fill(voiceKey, -1);
+		Arrays.fill(keyVoice, -1);
+
+		stealPolicy = STEAL_OLDEST;
+		triggerCount = 0;
+	}
+
+	/**
+	 * Finds a voice for a key that has just been pressed
+	 *
+	 * @param key The key being played
+	 *
+	 * @return The voice that should be triggered, -1 if every voice<br>
+	 *         already has a noteOn waiting in this buffer
+	 */
+	public int allocate(int key) {
+
+		int voice = keyVoice[key];
+
+		// Retrigger the voice that is still playing this key
+		if (voice < 0) {
+			voice = findFreeVoice();
+		}
+		if (voice < 0) {
+			voice = findVoiceToSteal();
+		}
+		if (voice < 0) {
+			return -1;
+		}
+
+		// Detach the voice from whatever key it played before
+		int oldKey = voiceKey[voice];
+		if (oldKey >= 0 && keyVoice[oldKey] == voice) {
+			keyVoice[oldKey] = -1;
+		}
+
+		voiceKey[voice] = key;
+		keyVoice[key] = voice;
+		voiceAge[voice] = ++triggerCount;
+		return voice;
+	}
+
+	/**
+	 * Called when a voice has gone idle so its key no longer maps to it
+	 *
+	 * @param voice The voice that finished
+	 */
+	public void voiceFinished(int voice) {
+
+		int key = voiceKey[voice];
+		if (key >= 0 && keyVoice[key] == voice) {
+			keyVoice[key] = -1;
+		}
+	}
+
+	private int findFreeVoice() {
+
+		for (int v = 0; v < numVoices; v++) {
+			if (envelope.voiceIsFree(v)) {
+				return v;
+			}
+		}
+		return -1;
+	}
+
+	private int findVoiceToSteal() {
+
+		int best = -1;
+
+		// Prefer a voice that is already fading out
+		for (int v = 0; v < numVoices; v++) {
+			if (envelope.voiceIsReleasing(v)) {
+				if (best < 0) {
+					best = v;
+				} else if (stealPolicy == STEAL_QUIETEST) {
+					if (envelope.getLevel(v) < envelope.getLevel(best)) {
+						best = v;
+					}
+				} else if (voiceAge[v] < voiceAge[best]) {
+					best = v;
+				}
+			}
+		}
+		if (best >= 0) {
+			return best;
+		}
+
+		// Everything is held down, take the oldest that is not about to start
+		for (int v = 0; v < numVoices; v++) {
+			if (!envelope.voiceIsTriggered(v) && (best < 0 || voiceAge[v] < voiceAge[best])) {
+				best = v;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return The key the voice is playing, -1 if it has never been used
+	 */
+	public int getVoiceKey(int voice) {
+		return voiceKey[voice];
+	}
+
+	/**
+	 * @return The voice playing the key, -1 if the key is not sounding
+	 */
+	public int getKeyVoice(int key) {
+		return keyVoice[key];
+	}
+
+	public int getNumVoices() {
+		return numVoices;
+	}
+
+	public int getNumKeys() {
+		return numKeys;
+	}
+
+	/**
+	 * Sets how a voice in release is chosen when all voices are busy
+	 *
+	 * @param policy STEAL_OLDEST or STEAL_QUIETEST
+	 */
+	public void setStealPolicy(int policy) {
+		stealPolicy = policy;
+	}
+}
@@ -0,0 +1,102 @@
+package org.craigl.softsynth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * WAV File Reader
+ * <p>
+ * Reads a whole sound file into memory as mono float samples at the<br>
+ * engine's sample rate, for impulse responses and the like. Any format<br>
+ * Java Sound can decode is accepted: 8 to 32 bit PCM and 32 bit float,<br>
+ * with any number of channels, which are averaged.
+ * <p>
+ * A file at another sample rate is resampled by linear interpolation.<br>
+ * Reading allocates, so it belongs off the audio thread.
+ */
+
+public class WavReader {
+
+	private WavReader() {
+	}
+
+	/**
+	 * Read a sound file
+	 *
+	 * @param path The file to read
+	 * @param sampleRate Sample rate wanted, the file is resampled if it differs
+	 *
+	 * @return The samples, full scale is +/-1.0
+	 */
+	public static float[] readMono(Path path, int sampleRate) throws IOException {
+
+		AudioInputStream in;
+		try {
+			in = AudioSystem.getAudioInputStream(path.toFile());
+		} catch (UnsupportedAudioFileException e) {
+			throw new IOException("Not a sound file Java can read: " + path, e);
+		}
+
+		try {
+			// Let Java Sound do the decoding, into little endian floats
+			AudioFormat source = in.getFormat();
+			int channels = source.getChannels();
+			AudioFormat target = new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, source.getSampleRate(), 32,
+					channels, 4 * channels, source.getSampleRate(), false);
+			AudioInputStream floats;
+			try {
+				floats = AudioSystem.getAudioInputStream(target, in);
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Can't decode " + source + " in " + path, e);
+			}
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] chunk = new byte[1 << 16];
+			int n;
+			while ((n = floats.read(chunk)) > 0) {
+				bytes.write(chunk, 0, n);
+			}
+
+			ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+			int frames = data.remaining() / (4 * channels);
+			float[] mono = new float[frames];
+			for (int i = 0; i < frames; i++) {
+				float sum = 0;
+				for (int c = 0; c < channels; c++) {
+					sum += data.getFloat();
+				}
+				mono[i] = sum / channels;
+			}
+
+			return resample(mono, source.getSampleRate(), sampleRate);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static float[] resample(float[] samples, float fromRate, int toRate) {
+
+		if (Math.round(fromRate) == toRate || samples.length == 0) {
+			return samples;
+		}
+		double step = fromRate / toRate;
+		int length = (int)((samples.length - 1) / step) + 1;
+		float[] out = new float[length];
+		for (int i = 0; i < length; i++) {
+			double pos = i * step;
+			int j = (int)pos;
+			double frac = pos - j;
+			float next = (j + 1 < samples.length) ? samples[j + 1] : samples[j];
+			out[i] = (float)(samples[j] + (next - samples[j]) * frac);
+		}
+		return out;
+	}
+}
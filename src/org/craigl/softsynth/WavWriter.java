@@ -0,0 +1,109 @@
+package org.craigl.softsynth;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * WAV File Writer
+ * <p>
+ * Writes 16 bit mono PCM samples to a WAV file through a FileChannel.<br>
+ * Samples are packed into a direct buffer and written in large chunks,<br>
+ * and the header sizes are filled in when the file is closed.
+ */
+
+public class WavWriter {
+
+	private static final int HEADER_SIZE = 44;
+	private static final int CHUNK_BYTES = 1 << 16;
+
+	private FileChannel channel;
+	private ByteBuffer chunk;
+	private int sampleRate;
+	private long dataBytes;
+
+	/**
+	 * WavWriter Class Constructor
+	 * <p>
+	 * Creates or truncates the file and leaves room for the header.
+	 *
+	 * @param path The file to write
+	 * @param sampleRate Samples per second
+	 */
+	public WavWriter(Path path, int sampleRate) throws IOException {
+
+		this.sampleRate = sampleRate;
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		chunk = ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		channel.position(HEADER_SIZE);
+		dataBytes = 0;
+	}
+
+	/**
+	 * Append samples to the file
+	 *
+	 * @param samples Samples to write, full scale is +/-1.0
+	 * @param numSamples Number of samples to write
+	 */
+	public void write(float[] samples, int numSamples) throws IOException {
+
+		for (int i = 0; i < numSamples; i++) {
+			if (chunk.remaining() < AudioConfig.BYTES_PER_FRAME) {
+				flush();
+			}
+			chunk.putShort(SamplePlayer.toShort(samples[i]));
+		}
+		dataBytes += (long)numSamples * AudioConfig.BYTES_PER_FRAME;
+	}
+
+	private void flush() throws IOException {
+
+		chunk.flip();
+		while (chunk.hasRemaining()) {
+			channel.write(chunk);
+		}
+		chunk.clear();
+	}
+
+	/**
+	 * Write out any buffered samples, fill in the header and close the file
+	 */
+	public void close() throws IOException {
+
+		try {
+			flush();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.put(new byte[] {'R', 'I', 'F', 'F'});
+			header.putInt((int)(36 + dataBytes));
+			header.put(new byte[] {'W', 'A', 'V', 'E'});
+			header.put(new byte[] {'f', 'm', 't', ' '});
+			header.putInt(16);
+			header.putShort((short)1); // PCM
+			header.putShort((short)1); // mono
+			header.putInt(sampleRate);
+			header.putInt(sampleRate * AudioConfig.BYTES_PER_FRAME);
+			header.putShort((short)AudioConfig.BYTES_PER_FRAME);
+			header.putShort((short)16);
+			header.put(new byte[] {'d', 'a', 't', 'a'});
+			header.putInt((int)dataBytes);
+			header.flip();
+
+			channel.position(0);
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	//Number of samples written so far
+	public long getSamplesWritten() {
+		return dataBytes / AudioConfig.BYTES_PER_FRAME;
+	}
+}
@@ -0,0 +1,161 @@
+package org.craigl.softsynth;
+
+/**
+ * WavetableOscillator Class
+ * <p>
+ * Drop-in replacement for BasicOscillator which renders the same additive<br>
+ * waveform from a precomputed table instead of calling Math.sin for every<br>
+ * harmonic of every note on every sample.
+ * <p>
+ * One period of the waveform described by harmoAmp/harmoSum is sampled into<br>
+ * a table of TABLE_SIZE points. Each note keeps a fixed-point phase<br>
+ * accumulator with PHASE_BITS bits per period; the top TABLE_BITS bits index<br>
+ * the table and the remaining bits linearly interpolate between neighbouring<br>
+ * points.
+ * <p>
+ * The output differs from the additive result by at most MAX_ERROR of full<br>
+ * scale, which is below one LSB once scaled to 16 bits.
+ */
+
+public class WavetableOscillator extends BasicOscillator {
+
+	//2048 points per period
+	public static final int TABLE_BITS = 11;
+	public static final int TABLE_SIZE = 1 << TABLE_BITS;
+
+	//Resolution of the phase accumulator. 40 bits keeps the rounding of the
+	//phase increment from drifting audibly even over minutes of sustain.
+	public static final int PHASE_BITS = 40;
+	private static final long PHASE_MASK = (1L << PHASE_BITS) - 1;
+
+	//Bits of the phase accumulator below the table index
+	private static final int FRAC_BITS = PHASE_BITS - TABLE_BITS;
+	private static final long FRAC_MASK = (1L << FRAC_BITS) - 1;
+	private static final double FRAC_SCALE = 1.0 / (1L << FRAC_BITS);
+
+	//Largest allowed difference from BasicOscillator.getSample, relative to full scale.
+	//Linear interpolation error is bounded by max|f''| * h^2 / 8, which for the default
+	//harmonics (f'' <= 16.3, h = 2*PI/2048) is about 2e-5.
+	public static final double MAX_ERROR = 1e-4;
+
+	//One period of the waveform, plus a guard point so index+1 never needs wrapping
+	private double[] table = new double[TABLE_SIZE + 1];
+
+	//Phase accumulator per voice, PHASE_MASK + 1 is one period
+	private long[] phase;
+
+	//Converts a fraction of a period into a phase increment
+	private static final double PHASE_SCALE = (double)(1L << PHASE_BITS);
+
+	/**
+	 * WavetableOscillator Class Constructor
+	 * <p>
+	 * Builds the wavetable from the default harmonics.
+	 */
+	public WavetableOscillator() {
+		this(NUM_NOTES, EnvelopeGenerator.DEFAULT_VOICES, AudioConfig.DEFAULT.getSampleRate());
+	}
+	
+	/**
+	 * WavetableOscillator Class Constructor
+	 * 
+	 * @param numKeys Number of keys that can be played, starting from A2
+	 * @param numVoices Number of voices that can sound at once
+	 * @param sampleRate Samples per second
+	 */
+	public WavetableOscillator(int numKeys, int numVoices, int sampleRate) {
+		super(numKeys, numVoices, sampleRate);
+		
+		phase = new long[numVoices];
+
+		rebuildTable();
+	}
+
+	@Override
+	public void setHarmonics(double[] amps) {
+		super.setHarmonics(amps);
+		rebuildTable();
+	}
+
+	/**
+	 * Resamples one period of the additive waveform into the table.
+	 * <p>
+	 * Must be called again if harmoAmp is changed directly rather than<br>
+	 * through setHarmonics.
+	 */
+	public void rebuildTable() {
+
+		harmoSum = 0;
+		for(int i=0;i<harmoAmp.length;i++)
+			harmoSum+=harmoAmp[i];
+
+		for(int j=0;j<TABLE_SIZE;j++){
+			double theta = 2.0 * Math.PI * j / TABLE_SIZE;
+			double value = 0;
+			for(int i=0; i<harmoAmp.length;i++)
+				value+=harmoAmp[i]*Math.sin((2.0*i+1) * theta);
+			table[j] = value/harmoSum;
+		}
+		table[TABLE_SIZE] = table[0];
+	}
+
+	/* Return the next sample of the oscillator's waveform
+	 * @return Next oscillator sample
+	 */
+	@Override
+	protected double getSample(int voice, int key) {
+
+		long p = phase[voice];
+		int index = (int)(p >>> FRAC_BITS);
+		double frac = (p & FRAC_MASK) * FRAC_SCALE;
+
+		double a = table[index];
+		double value = a + (table[index+1] - a) * frac;
+
+		phase[voice] = (p + increment(key)) & PHASE_MASK;
+
+		return value;
+	}
+
+	//The tuning only changes between buffers, so the increment is worked out once per voice
+	@Override
+	public void renderVoice(int voice, float[] row, int numSamples) {
+
+		long inc = increment(envelope.getVoiceKey(voice));
+		long p = phase[voice];
+		for(int j=0;j<numSamples;j++){
+			int index = (int)(p >>> FRAC_BITS);
+			double frac = (p & FRAC_MASK) * FRAC_SCALE;
+			double a = table[index];
+			row[j] = (float)(a + (table[index+1] - a) * frac);
+			p = (p + inc) & PHASE_MASK;
+		}
+		phase[voice] = p;
+	}
+
+	private long increment(int key) {
+		return (long)(tuning.getPhaseIncrement(key) * bend * PHASE_SCALE + 0.5);
+	}
+
+	/**
+	 * Runs the wavetable and the additive oscillator side by side for one key<br>
+	 * on voice 0 and returns the largest difference between them.
+	 * <p>
+	 * Both phases are advanced, so this should be called on a fresh instance.
+	 *
+	 * @param key The key to compare
+	 * @param numSamples How many samples to compare
+	 *
+	 * @return The maximum absolute error, relative to full scale
+	 */
+	public double measureError(int key, int numSamples) {
+
+		double maxError = 0;
+		for(int i=0;i<numSamples;i++){
+			double error = Math.abs(getSample(0, key) - super.getSample(0, key));
+			if(error > maxError)
+				maxError = error;
+		}
+		return maxError;
+	}
+}
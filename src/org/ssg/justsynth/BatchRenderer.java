@@ -0,0 +1,180 @@
+package org.ssg.justsynth;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
+
+import org.craigl.softsynth.AudioConfig;
+import org.craigl.softsynth.EnvelopeGenerator;
+import org.craigl.softsynth.MidiReceiver;
+import org.craigl.softsynth.TuningTable;
+
+//Renders one phrase in every built in tuning on every base note, one WAV file each.
+//Every job gets its own OfflineRenderer and so its own Engine,
+//so nothing is shared between threads and the jobs run side by side on all cores.
+//Tuning events in the script are ignored, each job sets its tuning before the first note.
+//
+//Usage: BatchRenderer script.txt|file.mid outDir [low | default | safe | rate,block,deviceBlocks] [threads]
+public class BatchRenderer {
+
+	private static final String[] BASE_NOTE_NAMES = {"A", "Bb", "B", "C", "Db", "D", "Eb", "E", "F", "Gb", "G", "Ab"};
+
+	//What one render took
+	static class Job {
+		int tuneDex;
+		int baseNote;
+		Path out;
+		long frames;
+		double seconds;
+		double speedFactor;
+	}
+
+	private AudioConfig config;
+	private int numThreads;
+
+	//Timing of the last batch
+	private long wallNanos;
+	private ArrayList<Job> jobs;
+
+	public BatchRenderer(AudioConfig config, int numThreads){
+		this.config = config;
+		this.numThreads = numThreads;
+	}
+
+	//Renders every tuning and base note into outDir, returning the finished jobs in tuning order
+	public ArrayList<Job> render(NoteScript script, final String name, final Path outDir) throws IOException, InterruptedException {
+
+		final NoteScript notes = script.withoutTunings();
+		OfflineRenderer names = new OfflineRenderer(config, 1);
+		int numTunings = names.getNumTunings();
+
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		ArrayList<Future<Job>> futures = new ArrayList<Future<Job>>();
+		long start = System.nanoTime();
+		try{
+			for(int t=0;t<numTunings;t++){
+				for(int b=0;b<TuningTable.NUM_BASE_NOTES;b++){
+					final Job job = new Job();
+					job.tuneDex = t;
+					job.baseNote = b;
+					job.out = outDir.resolve(name + "-" + fileName(names.getTuningName(t)) + "-" + BASE_NOTE_NAMES[b] + ".wav");
+					futures.add(pool.submit(new Callable<Job>(){
+						public Job call() throws IOException {
+							//Timed from building the engine to closing the file
+							long jobStart = System.nanoTime();
+							OfflineRenderer renderer = new OfflineRenderer(config, EnvelopeGenerator.DEFAULT_VOICES);
+							job.frames = renderer.render(notes, job.out, job.tuneDex, job.baseNote);
+							job.seconds = (System.nanoTime() - jobStart) / 1e9;
+							job.speedFactor = job.frames / job.seconds / config.getSampleRate();
+							return job;
+						}
+					}));
+				}
+			}
+
+			jobs = new ArrayList<Job>();
+			for(Future<Job> f : futures){
+				try{
+					jobs.add(f.get());
+				}catch(ExecutionException e){
+					if(e.getCause() instanceof IOException)
+						throw (IOException)e.getCause();
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		}finally{
+			pool.shutdownNow();
+		}
+		wallNanos = System.nanoTime() - start;
+		return jobs;
+	}
+
+	public double getWallSeconds(){
+		return wallNanos / 1e9;
+	}
+
+	public long getTotalFrames(){
+		long total = 0;
+		for(Job j : jobs)
+			total += j.frames;
+		return total;
+	}
+
+	//Samples rendered per second of wall time, over all jobs
+	public double getSamplesPerSecond(){
+		return getTotalFrames() / getWallSeconds();
+	}
+
+	//Time the jobs would have taken one after another, over the time they took.
+	//Close to the thread count when the batch scales with the cores.
+	public double getParallelSpeedup(){
+		double busy = 0;
+		for(Job j : jobs)
+			busy += j.seconds;
+		return busy / getWallSeconds();
+	}
+
+	//Tuning names can hold anything a .scl description line can
+	private static String fileName(String s){
+		return s.replaceAll("[^A-Za-z0-9]+", "_").replaceAll("^_|_$", "");
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if(args.length < 2){
+			System.err.println("Usage: BatchRenderer script.txt|file.mid outDir [low | default | safe | rate,block,deviceBlocks] [threads]");
+			System.exit(2);
+		}
+
+		AudioConfig config = AudioConfig.DEFAULT;
+		if(args.length > 2)
+			config = AudioConfig.parse(args[2]);
+		int threads = Runtime.getRuntime().availableProcessors();
+		if(args.length > 3)
+			threads = Integer.parseInt(args[3]);
+
+		String name = new File(args[0]).getName();
+		NoteScript script;
+		if(name.toLowerCase().endsWith(".mid") || name.toLowerCase().endsWith(".midi")){
+			try{
+				script = NoteScript.fromMidi(MidiSystem.getSequence(new File(args[0])), MidiReceiver.DEFAULT_LOWEST_NOTE);
+			}catch(InvalidMidiDataException e){
+				throw new IOException("Can't read " + args[0] + ": " + e.getMessage());
+			}
+		}else{
+			FileReader in = new FileReader(args[0]);
+			try{
+				script = NoteScript.parse(in);
+			}finally{
+				in.close();
+			}
+		}
+		if(name.indexOf('.') > 0)
+			name = name.substring(0, name.lastIndexOf('.'));
+
+		Path outDir = Paths.get(args[1]);
+		Files.createDirectories(outDir);
+
+		BatchRenderer batch = new BatchRenderer(config, threads);
+		ArrayList<Job> jobs = batch.render(script, name, outDir);
+
+		for(Job j : jobs){
+			System.out.printf("%-40s %10d samples %8.3f s %7.1fx real time%n",
+					j.out.getFileName(), j.frames, j.seconds, j.speedFactor);
+		}
+		System.out.printf("%d renders on %d threads in %.3f s: %.0f samples/s, %.1fx real time, %.2fx parallel speedup%n",
+				jobs.size(), threads, batch.getWallSeconds(), batch.getSamplesPerSecond(),
+				batch.getSamplesPerSecond() / config.getSampleRate(), batch.getParallelSpeedup());
+	}
+}
@@ -0,0 +1,147 @@
+package org.ssg.justsynth;
+
+import org.craigl.softsynth.AudioConfig;
+import org.craigl.softsynth.ConvolutionReverb;
+import org.craigl.softsynth.BasicOscillator;
+import org.craigl.softsynth.EnvelopeGenerator;
+import org.craigl.softsynth.Limiter;
+import org.craigl.softsynth.ParallelVoiceRenderer;
+import org.craigl.softsynth.SampleProviderIntfc;
+import org.craigl.softsynth.VCA;
+import org.craigl.softsynth.WavetableOscillator;
+
+//One complete synth voice chain: oscillator, envelope generator, VCA, mixer, reverb and limiter.
+//The reverb passes the mix straight through until it is given an impulse response.
+//The engine owns its voices, tuning and envelope settings and nothing in it is
+//static, so any number of engines can play side by side in one JVM, each rendered
+//by its own thread. Pulling samples from it gives the mix in the last row.
+public class Engine implements SampleProviderIntfc {
+
+	//Envelope every engine starts with
+	public static final int DEFAULT_ATTACK_MS = 150;
+	public static final int DEFAULT_DECAY_MS = 80;
+	public static final double DEFAULT_SUSTAIN = 0.4;
+	public static final int DEFAULT_RELEASE_MS = 400;
+
+	private AudioConfig config;
+	private BasicOscillator osc;
+	private EnvelopeGenerator envelope;
+	private VCA vca;
+	private Mixer mixer;
+	private ConvolutionReverb reverb;
+	private Limiter limiter;
+	private ParallelVoiceRenderer parallel;
+
+	//Table based oscillator, so held chords don't cost a Math.sin per harmonic
+	public Engine(AudioConfig config){
+		this(config, new WavetableOscillator(BasicOscillator.NUM_NOTES, EnvelopeGenerator.DEFAULT_VOICES, config.getSampleRate()));
+	}
+
+	//Builds the chain around the given oscillator, with as many voices and keys as it has
+	public Engine(AudioConfig config, BasicOscillator osc){
+		this.config = config;
+		this.osc = osc;
+
+		envelope = new EnvelopeGenerator(osc.getNumVoices(), osc.getNumKeys(), config.getSampleRate());
+		envelope.setParameters(DEFAULT_ATTACK_MS, DEFAULT_DECAY_MS, DEFAULT_SUSTAIN, DEFAULT_RELEASE_MS);
+		osc.setEnvelope(envelope);
+
+		vca = new VCA(envelope, config.getBlockSize());
+		vca.setSampleProvider(osc);
+
+		mixer = new Mixer();
+		mixer.setSampleProvider(vca);
+		mixer.setEnvelope(envelope);
+		
+		//Notes play at full scale, the limiter turns chords down instead of letting them clip
+		reverb = new ConvolutionReverb(config.getBlockSize());
+		reverb.setSampleProvider(mixer);
+		
+		limiter = new Limiter(config.getSampleRate());
+		limiter.setSampleProvider(reverb);
+	}
+
+	//Spreads the voices over several threads. Output is the same as on one thread.
+	public void setRenderThreads(int numThreads){
+		if(parallel != null){
+			parallel.shutdown();
+			parallel = null;
+		}
+		if(numThreads > 1){
+			parallel = new ParallelVoiceRenderer(osc, vca, numThreads);
+			mixer.setSampleProvider(parallel);
+		}else{
+			mixer.setSampleProvider(vca);
+		}
+	}
+
+	//Stops any render threads, the engine can't be rendered afterwards
+	public void shutdown(){
+		if(parallel != null)
+			parallel.shutdown();
+	}
+
+	//Called by the audio thread that owns this engine
+	public int getSamples(float[][] buffer, int numSamples){
+		return limiter.getSamples(buffer, numSamples);
+	}
+
+	//A buffer with one row per voice and the mix in the last row, one block long
+	public float[][] newBuffer(){
+		return new float[osc.getNumVoices()+1][config.getBlockSize()];
+	}
+
+	//The remaining methods may be called from any thread other than the audio thread
+
+	public void noteOn(int key){
+		envelope.noteOn(key);
+	}
+
+	public void noteOff(int key){
+		envelope.noteOff(key);
+	}
+
+	public void setTuning(int tuneDex, int baseNote){
+		osc.setTuning(tuneDex, baseNote);
+	}
+
+	//Sets the envelope of the notes played from now on. Sounding notes keep
+	//theirs unless soundingToo is set, then they change at the next buffer.
+	public void setEnvelope(int attackMS, int decayMS, double sustain, int releaseMS, boolean soundingToo){
+		envelope.setParameters(attackMS, decayMS, sustain, releaseMS);
+		if(soundingToo)
+			envelope.applyToSoundingVoices();
+	}
+
+	public AudioConfig getConfig(){
+		return config;
+	}
+
+	public BasicOscillator getOscillator(){
+		return osc;
+	}
+
+	public EnvelopeGenerator getEnvelope(){
+		return envelope;
+	}
+
+	public VCA getVCA(){
+		return vca;
+	}
+
+	public Mixer getMixer(){
+		return mixer;
+	}
+	
+	public ConvolutionReverb getReverb(){
+		return reverb;
+	}
+	
+	public Limiter getLimiter(){
+		return limiter;
+	}
+
+	public int getNumVoices(){
+		return osc.getNumVoices();
+	}
+}
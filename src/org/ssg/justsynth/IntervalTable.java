@@ -0,0 +1,119 @@
+package org.ssg.justsynth;
+
+import org.apache.commons.math3.fraction.Fraction;
+import org.newdawn.slick.Color;
+
+/**
+ * Interval Table
+ * <p>
+ * The contents of the 12x12 interval table for one tuning, base note and<br>
+ * display mode: the text of each cell and the shade behind it. Rows are<br>
+ * the notes A to G#, columns the number of semitones up.
+ * <p>
+ * Never changed once built, so it can be cached and shared.
+ */
+
+public class IntervalTable {
+
+	public static final int SIZE = 12;
+
+	private final boolean cents;
+	//Cents, or the numerator of the ratio
+	private final String[][] top;
+	//Empty for cents, or the denominator of the ratio
+	private final String[][] bottom;
+	//Background of each cell, null for none
+	private final Color[][] shade;
+
+	private IntervalTable(boolean cents, String[][] top, String[][] bottom, Color[][] shade) {
+		this.cents = cents;
+		this.top = top;
+		this.bottom = bottom;
+		this.shade = shade;
+	}
+
+	/**
+	 * Builds a table
+	 *
+	 * @param shape Frequency of each key relative to the base note, at least 12 keys
+	 * @param baseNote The key the tuning is built on, 0 to 11
+	 * @param intervals The scale as fractions for the ratio display, or null to show cents
+	 *
+	 * @return The table
+	 */
+	public static IntervalTable build(double[] shape, int baseNote, Fraction[] intervals) {
+
+		//The cents are needed either way, as they decide the shading
+		double[][] centIntervals = new double[SIZE][SIZE];
+		for (int i = 0; i < SIZE; i++) {
+			for (int j = 0; j < SIZE; j++) {
+				double c = 1200.0 * Math.log(shape[mod(i+j+baseNote)] / shape[mod(i+baseNote)]) / Math.log(2.0);
+				//Keys a keyboard mapping leaves silent have no interval
+				if (Double.isNaN(c) || Double.isInfinite(c))
+					c = 0;
+				if (c < 0)
+					c += 1200;
+				centIntervals[mod(i+baseNote)][j] = c;
+			}
+		}
+
+		//Shade each cell by how different the interval is from the reference
+		Color[][] shade = new Color[SIZE][SIZE];
+		for (int i = 0; i < SIZE; i++) {
+			for (int j = 0; j < SIZE; j++) {
+				double a = Math.round(centIntervals[i][j]);
+				double b = Math.round(centIntervals[baseNote][j]);
+				int c = (int)Math.abs(b-a) * 3;
+				if (c != 0)
+					shade[i][j] = new Color(c, c, c);
+			}
+		}
+
+		String[][] top = new String[SIZE][SIZE];
+		String[][] bottom = new String[SIZE][SIZE];
+		if (intervals == null) {
+			for (int i = 0; i < SIZE; i++) {
+				for (int j = 0; j < SIZE; j++) {
+					top[i][j] = String.valueOf((int)Math.round(centIntervals[i][j])).intern();
+					bottom[i][j] = "";
+				}
+			}
+		} else {
+			//Second ratio divided by first
+			//Row determines offset from base note
+			//Column determines interval step
+			for (int i = 0; i < SIZE; i++) {
+				for (int j = 0; j < SIZE; j++) {
+					int factor = 1;
+					if (i+j >= SIZE)//If you've gone up an octave
+						factor = 2;
+					Fraction f = intervals[mod(i+j)].divide(intervals[i]).multiply(factor);
+					top[mod(i+baseNote)][j] = String.valueOf(f.getNumerator()).intern();
+					bottom[mod(i+baseNote)][j] = String.valueOf(f.getDenominator()).intern();
+				}
+			}
+		}
+
+		return new IntervalTable(intervals == null, top, bottom, shade);
+	}
+
+	private static int mod(int x) {
+		return ((x % SIZE) + SIZE) % SIZE;
+	}
+
+	public boolean isCents() {
+		return cents;
+	}
+
+	public String getTop(int row, int col) {
+		return top[row][col];
+	}
+
+	public String getBottom(int row, int col) {
+		return bottom[row][col];
+	}
+
+	public Color getShade(int row, int col) {
+		return shade[row][col];
+	}
+}
@@ -0,0 +1,68 @@
+package org.ssg.justsynth;
+
+import java.util.ArrayList;
+
+import org.craigl.softsynth.BasicOscillator;
+import org.craigl.softsynth.TuningTable;
+
+/**
+ * Interval Table Cache
+ * <p>
+ * Holds the interval table for every tuning, base note and display mode,<br>
+ * so switching between them is a lookup. The tunings the oscillator starts<br>
+ * with are built up front; tunings added later, such as library scales,<br>
+ * are built the first time they are shown.
+ * <p>
+ * The tables only depend on the tuning's layout, not on the pitch of the<br>
+ * base note, so retuning to a note never invalidates them.
+ */
+
+public class IntervalTableCache {
+
+	private static final int CENTS = 0;
+	private static final int RATIOS = 1;
+
+	private BasicOscillator osc;
+
+	//Indexed by [tuning][baseNote][CENTS or RATIOS], filled in as needed
+	private ArrayList<IntervalTable[][]> tables;
+
+	public IntervalTableCache(BasicOscillator osc) {
+
+		this.osc = osc;
+		tables = new ArrayList<IntervalTable[][]>();
+
+		for (int t = 0; t < osc.getNumTunings(); t++) {
+			for (int b = 0; b < TuningTable.NUM_BASE_NOTES; b++) {
+				get(t, b, true);
+				if (osc.getIntervals(t) != null)
+					get(t, b, false);
+			}
+		}
+	}
+
+	/**
+	 * @param tuneDex The tuning
+	 * @param baseNote The key the tuning is built on, 0 to 11
+	 * @param cents Whether to show cents rather than ratios. Tunings without<br>
+	 *        fractions are always shown in cents.
+	 *
+	 * @return The table to draw
+	 */
+	public IntervalTable get(int tuneDex, int baseNote, boolean cents) {
+
+		while (tables.size() <= tuneDex)
+			tables.add(new IntervalTable[TuningTable.NUM_BASE_NOTES][2]);
+
+		if (osc.getIntervals(tuneDex) == null)
+			cents = true;
+		int mode = cents ? CENTS : RATIOS;
+
+		IntervalTable[][] forTuning = tables.get(tuneDex);
+		if (forTuning[baseNote][mode] == null) {
+			double[] shape = osc.getTuningTable().getShape(tuneDex, baseNote);
+			forTuning[baseNote][mode] = IntervalTable.build(shape, baseNote, cents ? null : osc.getIntervals(tuneDex));
+		}
+		return forTuning[baseNote][mode];
+	}
+}
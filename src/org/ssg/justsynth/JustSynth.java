@@ -1,5 +1,17 @@
 package org.ssg.justsynth;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import javax.management.JMException;
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.Synthesizer;
+
 import org.craigl.softsynth.*;
 
 import org.newdawn.slick.AppGameContainer;
@@ -15,21 +27,23 @@ public class JustSynth extends StateBasedGame {
 	public static final int INTROSTATE = 00;
 	public static final int SYNTHSTATE = 10;
 	
-	static BasicOscillator osc;
-	static VCA vca;
-	static SamplePlayer player;
-	static Mixer mixer;
+	private Engine engine;
+	private SamplePlayer player;
+	private ScalaIndex library;
 	
 	Image introImg1, introImg2; 
 	
-	public JustSynth() throws SlickException {
+	public JustSynth(Engine engine, SamplePlayer player, ScalaIndex library) throws SlickException {
 		super("JustSynthThyme");
+		this.engine = engine;
+		this.player = player;
+		this.library = library;
 		
 		Color randColor = new Color((int)(Math.random()*256),(int)( Math.random()*256), (int)(Math.random()*256));
 		
 		//The first state to be added is entered by default
 		this.addState(new IntroState(INTROSTATE, player, randColor));
-		this.addState(new SynthState(SYNTHSTATE, osc, vca, player, randColor));
+		this.addState(new SynthState(SYNTHSTATE, engine, player, randColor, library));
 	}
 
 	public void initStatesList(GameContainer gc) throws SlickException {
@@ -37,40 +51,84 @@ public class JustSynth extends StateBasedGame {
 		introImg2 = new Image("resources/2.png");
 	}
 
+	//Usage: JustSynth [low | default | safe | rate,block,deviceBlocks] [renderThreads] [additive | saw | square | triangle] [impulse.wav]
 	public static void main(String[] args) throws SlickException {
 	
-		// Create an oscillator
-		osc = new BasicOscillator();
-
-		// Create a VCA
-		vca = new VCA();
-		osc.setVCA(vca);
+		// Pick the latency mode, the old fixed settings unless told otherwise
+		AudioConfig config = AudioConfig.DEFAULT;
+		if (args.length > 0)
+			config = AudioConfig.parse(args[0]);
 		
-		// Set the VCA's sample provider
-		vca.setSampleProvider(osc);
-
-		// Parameterize the envelope generator
-		vca.setAttackTimeInMS(150);
-		vca.setDecayTimeInMS(80);
-		vca.setSustainLevel(0.4);
-		vca.setReleaseTimeInMS(400);
+		// Oscillator, envelope, VCA and mixer, with the live synth's envelope.
+		// The band limited waves are brighter than the additive harmonics.
+		Engine engine;
+		if (args.length > 2 && !args[2].equals("additive")) {
+			PolyBlepOscillator osc = new PolyBlepOscillator(BasicOscillator.NUM_NOTES, EnvelopeGenerator.DEFAULT_VOICES, config.getSampleRate());
+			if (args[2].equals("square"))
+				osc.setWaveform(PolyBlepOscillator.WAVE_SQUARE);
+			else if (args[2].equals("triangle"))
+				osc.setWaveform(PolyBlepOscillator.WAVE_TRIANGLE);
+			else if (!args[2].equals("saw"))
+				throw new IllegalArgumentException("Unknown waveform: " + args[2]);
+			engine = new Engine(config, osc);
+		} else {
+			engine = new Engine(config);
+		}
+		// Curved segments, which sound more natural than straight ramps
+		engine.getEnvelope().setCurve(EnvelopeGenerator.CURVE_EXPONENTIAL);
+		
+		// Spread the voices over several cores if asked to
+		if (args.length > 1)
+			engine.setRenderThreads(Integer.parseInt(args[1]));
+		
+		// Reverb from a recorded room, or any other impulse response
+		if (args.length > 3) {
+			try {
+				engine.getReverb().setImpulse(WavReader.readMono(Paths.get(args[3]), config.getSampleRate()));
+			} catch (IOException e) {
+				System.out.println("Can't load the impulse response: " + e.getMessage());
+			}
+		}
 		
-		mixer = new Mixer();
-		mixer.setSampleProvider(vca);
+		// Scala files in resources/scales can be chosen after the built in tunings
+		ScalaIndex library = null;
+		Path scales = Paths.get("resources/scales");
+		if (Files.isDirectory(scales)) {
+			try {
+				library = ScalaIndex.openOrCompile(scales);
+				System.out.println(library.getCount() + " scales in " + scales);
+			} catch (IOException e) {
+				System.out.println("Can't load the scale library: " + e.getMessage());
+			}
+		}
 		
 		// Create a sample player
-		player = new SamplePlayer();
+		SamplePlayer player = new SamplePlayer(config, engine.getNumVoices());
 		
 		// Sets the sample player's sample provider
-		player.setSampleProvider(mixer);
+		player.setSampleProvider(engine);
+		
+		// Publish render times, voices and dropouts over JMX
+		EngineMetrics metrics = new EngineMetrics(config, engine.getOscillator(), engine.getEnvelope());
+		engine.getLimiter().setMetrics(metrics);
+		player.setMetrics(metrics);
+		try {
+			metrics.register();
+		} catch (JMException e) {
+			System.out.println("Can't register the engine metrics: " + e.getMessage());
+		}
+		
+		// Play from any MIDI keyboards that are plugged in
+		openMidiInputs(engine);
 		
 		// Start the player
 		player.startPlayer();	
 		
-		AppGameContainer app = new AppGameContainer(new JustSynth());
+		AppGameContainer app = new AppGameContainer(new JustSynth(engine, player, library));
 		app.setDisplayMode(1000, 700, false);
 		//app.setVSync(true);
-		//app.setTargetFrameRate(60);
+		//Only the pressed keys change between frames, so don't redraw faster than the screen
+		app.setTargetFrameRate(60);
 		app.setAlwaysRender(true);
 		app.setShowFPS(false);
 		app.setTitle("Just Synth Thyme");
@@ -80,7 +138,35 @@ public class JustSynth extends StateBasedGame {
 		app.setFullscreen(false);
 		//app.setMaximumLogicUpdateInterval(24);
 		//app.setMinimumLogicUpdateInterval(24);
+		//Come back here when the window closes, to tidy up before exiting
+		app.setForceExit(false);
 		app.start();
+		
+		try {
+			metrics.unregister();
+		} catch (JMException e) {
+			System.out.println("Can't unregister the engine metrics: " + e.getMessage());
+		}
+		System.exit(0);
+	}
+	
+	// Connects every MIDI input device to a receiver of its own, skipping Java's own sequencer
+	// and synthesizer. Devices deliver on their own threads, and a receiver keeps the held
+	// keys and pedal of one device, so receivers aren't shared.
+	static void openMidiInputs(Engine engine) {
+		
+		for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+			try {
+				MidiDevice device = MidiSystem.getMidiDevice(info);
+				if (device.getMaxTransmitters() == 0 || device instanceof Sequencer || device instanceof Synthesizer)
+					continue;
+				device.open();
+				device.getTransmitter().setReceiver(new MidiReceiver(engine.getEnvelope(), engine.getOscillator()));
+				System.out.println("MIDI input: " + info.getName());
+			} catch (MidiUnavailableException e) {
+				System.out.println("Can't open MIDI input " + info.getName() + ": " + e.getMessage());
+			}
+		}
 	}
 
 }
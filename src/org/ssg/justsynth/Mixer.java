@@ -1,13 +1,21 @@
 package org.ssg.justsynth;
 
-import org.craigl.softsynth.BasicOscillator;
-import org.craigl.softsynth.SamplePlayer;
+import java.util.Arrays;
+
+import org.craigl.softsynth.EnvelopeGenerator;
+import org.craigl.softsynth.SampleKernels;
 import org.craigl.softsynth.SampleProviderIntfc;
 
 public class Mixer implements SampleProviderIntfc{
 
 	private SampleProviderIntfc provider;
 	
+	//Tells the mixer which rows hold sounding voices
+	private EnvelopeGenerator envelope;
+	
+	//Vector loops when the JVM has them
+	private SampleKernels kernels = SampleKernels.get();
+	
 	public Mixer(){
 		
 	}
@@ -16,45 +24,34 @@ public class Mixer implements SampleProviderIntfc{
 		this.provider = provider;
 	}
 	
-	//Goes through the individual waves calculated for each note and adds them together
-	//The summed value is stored into the last row of the buffer
-	//tempInt is unused in this particular method
-	public int getSamples(byte[][] buffer, int tempInt) {
+	public void setEnvelope(EnvelopeGenerator envelope){
+		this.envelope = envelope;
+	}
+	
+	//Goes through the individual waves calculated for each voice and adds them together
+	//The summed value is stored into the last row of the buffer. It is a float, so a chord
+	//can go past full scale without wrapping, and the limiter brings it back down.
+	public int getSamples(float[][] buffer, int numSamples) {
 		
-		provider.getSamples(buffer, -1);
+		provider.getSamples(buffer, numSamples);
 
-		//Go through each sample (time step)
-		for(int i=0; i<buffer[0].length-1; i+= 2){
-			buffer[BasicOscillator.NUM_NOTES][i] = 0;
-			//Go through each note at that time step
-			short sum = 0;
-			byte b2;
-			byte b1;
-			short addend;
-			for(int j=0; j<buffer.length-1; j++){
-				//Add the samples
-				b2 = buffer[j][i];
-				b1 = buffer[j][i+1];
-				addend = (short)(  ((b2&0xFF)<<8) | (b1&0xFF) );
-
-				sum += addend;
-			}
-			
-			buffer[BasicOscillator.NUM_NOTES][i] = (byte)(sum >> 8);
-			buffer[BasicOscillator.NUM_NOTES][i+1] = (byte)(sum & 0xFF);
-			
-			//printBuffer(buffer, i);
+		float[] mix = buffer[buffer.length-1];
+		int[] activeVoices = envelope.getActiveVoices();
+		int activeCount = envelope.getActiveCount();
+		
+		if(activeCount == 0){
+			Arrays.fill(mix, 0, numSamples, 0.0f);
+			return numSamples;
 		}
 		
-		return SamplePlayer.BUFFER_SIZE;
+		//Add up the active voices, starting from the first
+		//Rows of idle voices may hold stale data and are never read
+		kernels.mix(buffer, activeVoices, activeCount, mix, numSamples);
+		
+		return numSamples;
 	}
 	
-	public void printBufferList(byte[][] buffer, int i){
-		if(i%2 == 0){
-			byte b2 = buffer[BasicOscillator.NUM_NOTES][i];
-			byte b1 = buffer[BasicOscillator.NUM_NOTES][i+1];
-			short s=(short)( ((b2&0xFF)<<8) | (b1&0xFF) );
-			System.out.println(s);
-		}
+	public void printBufferList(float[][] buffer, int i){
+		System.out.println(buffer[buffer.length-1][i]);
 	}
 }
@@ -0,0 +1,224 @@
+package org.ssg.justsynth;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import org.craigl.softsynth.BasicOscillator;
+import org.craigl.softsynth.TuningTable;
+
+//A timed list of note and tuning events to be played back by the OfflineRenderer
+//
+//The text form has one event per line, times in seconds, # starts a comment:
+//	0.0   on      0          press key 0
+//	0.5   off     0          release key 0
+//	1.0   tuning  1 3        Just 7-Limit, based on C
+//
+//Standard MIDI Files can be turned into a script with fromMidi.
+public class NoteScript {
+
+	//MIDI meta event that sets the tempo, in microseconds per quarter note
+	private static final int META_TEMPO = 0x51;
+	private static final int DEFAULT_TEMPO = 500000;
+
+	//Scripts can only use the built in tunings, which every renderer has
+	private static final int NUM_TUNINGS = BasicOscillator.PYTHAGOREAN + 1;
+
+	public static final int NOTE_ON = 0;
+	public static final int NOTE_OFF = 1;
+	public static final int TUNING = 2;
+
+	public static class Event {
+		public final double time;
+		public final int type;
+		//The key for note events, the tuning for tuning events
+		public final int value;
+		//The base note for tuning events
+		public final int baseNote;
+
+		Event(double time, int type, int value, int baseNote){
+			this.time = time;
+			this.type = type;
+			this.value = value;
+			this.baseNote = baseNote;
+		}
+	}
+
+	private ArrayList<Event> events;
+	private boolean sorted;
+
+	public NoteScript(){
+		events = new ArrayList<Event>();
+		sorted = true;
+	}
+
+	public NoteScript noteOn(double time, int key){
+		return add(new Event(time, NOTE_ON, key, 0));
+	}
+
+	public NoteScript noteOff(double time, int key){
+		return add(new Event(time, NOTE_OFF, key, 0));
+	}
+
+	public NoteScript tuning(double time, int tuneDex, int baseNote){
+		return add(new Event(time, TUNING, tuneDex, baseNote));
+	}
+
+	private NoteScript add(Event e){
+		if(!events.isEmpty() && e.time < events.get(events.size()-1).time)
+			sorted = false;
+		events.add(e);
+		return this;
+	}
+
+	//The events in time order. Events at the same time keep the order they were added in.
+	public ArrayList<Event> getEvents(){
+		if(!sorted){
+			Collections.sort(events, new Comparator<Event>(){
+				public int compare(Event a, Event b){
+					return Double.compare(a.time, b.time);
+				}
+			});
+			sorted = true;
+		}
+		return events;
+	}
+
+	//A copy with only the note events, for playing the same phrase in a chosen tuning
+	public NoteScript withoutTunings(){
+		NoteScript notes = new NoteScript();
+		for(Event e : getEvents()){
+			if(e.type != TUNING)
+				notes.add(e);
+		}
+		return notes;
+	}
+
+	//Time of the last event in seconds
+	public double getLength(){
+		ArrayList<Event> e = getEvents();
+		return e.isEmpty() ? 0 : e.get(e.size()-1).time;
+	}
+
+	public static NoteScript parse(Reader in) throws IOException {
+		NoteScript script = new NoteScript();
+		BufferedReader reader = new BufferedReader(in);
+		String line;
+		int lineNumber = 0;
+		while((line = reader.readLine()) != null){
+			lineNumber++;
+			int comment = line.indexOf('#');
+			if(comment >= 0)
+				line = line.substring(0, comment);
+			line = line.trim();
+			if(line.isEmpty())
+				continue;
+
+			String[] parts = line.split("\\s+");
+			try{
+				double time = time(parts[0], lineNumber, line);
+				if(parts[1].equals("on") && parts.length == 3){
+					script.noteOn(time, inRange(parts[2], BasicOscillator.NUM_NOTES, "key", lineNumber, line));
+				}else if(parts[1].equals("off") && parts.length == 3){
+					script.noteOff(time, inRange(parts[2], BasicOscillator.NUM_NOTES, "key", lineNumber, line));
+				}else if(parts[1].equals("tuning") && parts.length == 4){
+					script.tuning(time, inRange(parts[2], NUM_TUNINGS, "tuning", lineNumber, line),
+							inRange(parts[3], TuningTable.NUM_BASE_NOTES, "base note", lineNumber, line));
+				}else{
+					throw new IOException("Bad event on line "+lineNumber+": "+line);
+				}
+			}catch(NumberFormatException e){
+				throw new IOException("Bad number on line "+lineNumber+": "+line);
+			}catch(ArrayIndexOutOfBoundsException e){
+				throw new IOException("Bad event on line "+lineNumber+": "+line);
+			}
+		}
+		return script;
+	}
+
+	//Parses an event time, which must be a finite number of seconds, 0 or more.
+	//Double.parseDouble also takes NaN and Infinity, which would defeat the sorting
+	//and the sample clock.
+	private static double time(String number, int lineNumber, String line) throws IOException {
+		double value = Double.parseDouble(number);
+		if(!(value >= 0) || Double.isInfinite(value))
+			throw new IOException("Bad time "+number+" on line "+lineNumber+", must be 0 or more seconds: "+line);
+		return value;
+	}
+
+	//Parses a key, tuning or base note, which must be from 0 to count-1
+	private static int inRange(String number, int count, String what, int lineNumber, String line) throws IOException {
+		int value = Integer.parseInt(number);
+		if(value < 0 || value >= count)
+			throw new IOException("No "+what+" "+value+" on line "+lineNumber+", must be 0 to "+(count-1)+": "+line);
+		return value;
+	}
+
+	//The notes of every track of a MIDI sequence. lowestNote is the MIDI note played
+	//by key 0, notes off either end of the keyboard are left out. Velocity is not kept.
+	public static NoteScript fromMidi(Sequence sequence, int lowestNote){
+
+		//Tempo changes from every track, in tick order
+		TreeMap<Long,Integer> tempos = new TreeMap<Long,Integer>();
+		for(Track track : sequence.getTracks()){
+			for(int i=0;i<track.size();i++){
+				MidiMessage m = track.get(i).getMessage();
+				if(m instanceof MetaMessage && ((MetaMessage)m).getType() == META_TEMPO){
+					byte[] d = ((MetaMessage)m).getData();
+					tempos.put(track.get(i).getTick(), ((d[0]&0xFF)<<16) | ((d[1]&0xFF)<<8) | (d[2]&0xFF));
+				}
+			}
+		}
+
+		NoteScript script = new NoteScript();
+		for(Track track : sequence.getTracks()){
+			for(int i=0;i<track.size();i++){
+				MidiEvent e = track.get(i);
+				if(!(e.getMessage() instanceof ShortMessage))
+					continue;
+				ShortMessage sm = (ShortMessage)e.getMessage();
+				int key = sm.getData1() - lowestNote;
+				if(key < 0 || key >= BasicOscillator.NUM_NOTES)
+					continue;
+
+				//A note on with no velocity is a note off
+				if(sm.getCommand() == ShortMessage.NOTE_ON && sm.getData2() > 0){
+					script.noteOn(tickToSeconds(sequence, tempos, e.getTick()), key);
+				}else if(sm.getCommand() == ShortMessage.NOTE_ON || sm.getCommand() == ShortMessage.NOTE_OFF){
+					script.noteOff(tickToSeconds(sequence, tempos, e.getTick()), key);
+				}
+			}
+		}
+		return script;
+	}
+
+	private static double tickToSeconds(Sequence sequence, TreeMap<Long,Integer> tempos, long tick){
+		//SMPTE timing has a fixed number of ticks per second
+		if(sequence.getDivisionType() != Sequence.PPQ)
+			return tick / (sequence.getDivisionType() * sequence.getResolution());
+
+		//Add up the stretches between tempo changes
+		double micros = 0;
+		long last = 0;
+		int tempo = DEFAULT_TEMPO;
+		for(Map.Entry<Long,Integer> change : tempos.headMap(tick).entrySet()){
+			micros += (double)(change.getKey() - last) * tempo;
+			last = change.getKey();
+			tempo = change.getValue();
+		}
+		micros += (double)(tick - last) * tempo;
+		return micros / sequence.getResolution() / 1e6;
+	}
+}
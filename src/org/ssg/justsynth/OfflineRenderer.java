@@ -0,0 +1,210 @@
+package org.ssg.justsynth;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+import org.craigl.softsynth.AudioConfig;
+import org.craigl.softsynth.BasicOscillator;
+import org.craigl.softsynth.EnvelopeGenerator;
+import org.craigl.softsynth.WavReader;
+import org.craigl.softsynth.WavWriter;
+import org.craigl.softsynth.WavetableOscillator;
+
+//Plays a NoteScript through the oscillator, VCA and mixer chain and writes the
+//result to a WAV file as fast as the CPU allows. Needs no audio device or display.
+//
+//Usage: OfflineRenderer script.txt out.wav [low | default | safe | rate,block,deviceBlocks] [impulse.wav]
+public class OfflineRenderer {
+
+	//How long to let notes ring after the last event before giving up on silence
+	private static final double MAX_TAIL_SECS = 10.0;
+
+	private AudioConfig config;
+	private int numVoices;
+
+	private Engine engine;
+	private EnvelopeGenerator envelope;
+	private float[][] buffer;
+	
+	//Impulse response for the reverb, if any
+	private float[] impulse;
+
+	//Timing of the last render
+	private long framesRendered;
+	private long renderNanos;
+
+	public OfflineRenderer(AudioConfig config, int numVoices){
+		this.config = config;
+		this.numVoices = numVoices;
+	}
+	
+	//Renders from now on go through a reverb with this impulse response, null for none
+	public void setImpulse(float[] impulse){
+		this.impulse = impulse;
+	}
+
+	//A fresh engine for every render, so renders don't affect each other
+	private void buildChain(){
+		engine = new Engine(config, new WavetableOscillator(BasicOscillator.NUM_NOTES, numVoices, config.getSampleRate()));
+		envelope = engine.getEnvelope();
+
+		//Event times count rendered samples, not wall clock time
+		envelope.setSampleClock(true);
+		
+		engine.getReverb().setImpulse(impulse);
+
+		buffer = engine.newBuffer();
+	}
+
+	//Renders the script into the file, returning the number of samples written
+	public long render(NoteScript script, Path out) throws IOException {
+
+		buildChain();
+		return renderChain(script, out);
+	}
+
+	//Renders the script starting in the given tuning, as if it had been chosen before the first note
+	public long render(NoteScript script, Path out, int tuneDex, int baseNote) throws IOException {
+
+		buildChain();
+		engine.setTuning(tuneDex, baseNote);
+		return renderChain(script, out);
+	}
+
+	//Number of tunings a render can start in, the built in ones
+	public int getNumTunings(){
+		if(engine == null)
+			buildChain();
+		return engine.getOscillator().getNumTunings();
+	}
+
+	public String getTuningName(int tuneDex){
+		if(engine == null)
+			buildChain();
+		return engine.getOscillator().getTuningName(tuneDex);
+	}
+
+	private long renderChain(NoteScript script, Path out) throws IOException {
+
+		ArrayList<NoteScript.Event> events = script.getEvents();
+		int sampleRate = config.getSampleRate();
+		long endFrame = Math.round(script.getLength() * sampleRate);
+		long maxFrame = endFrame + Math.round(MAX_TAIL_SECS * sampleRate);
+
+		WavWriter wav = new WavWriter(out, sampleRate);
+		long start = System.nanoTime();
+
+		//The reverb rings on after the last note has died away, and the limiter
+		//holds back its look-ahead of the mix, so keep going until both are out
+		int tail = engine.getReverb().getTailLength() + engine.getLimiter().getLookahead();
+		maxFrame += tail;
+		long quietFrom = -1;
+
+		long frame = 0;
+		try{
+			int next = 0;
+			while(frame < maxFrame){
+				//Tuning changes happen between blocks, so cut the block short at the next one
+				int numSamples = config.getBlockSize();
+				while(next < events.size()){
+					NoteScript.Event e = events.get(next);
+					long eventFrame = Math.round(e.time * sampleRate);
+					if(e.type == NoteScript.TUNING){
+						if(eventFrame > frame){
+							numSamples = (int)Math.min(numSamples, eventFrame - frame);
+							break;
+						}
+						engine.setTuning(e.value, e.baseNote);
+					}else{
+						if(eventFrame >= frame + numSamples)
+							break;
+						//Stamped in rendered time, so the envelope starts it on exactly this sample
+						boolean queued;
+						if(e.type == NoteScript.NOTE_ON){
+							queued = envelope.noteOn(e.value, envelope.frameToNanos(eventFrame));
+						}else{
+							queued = envelope.noteOff(e.value, envelope.frameToNanos(eventFrame));
+						}
+						//Queue full, so end the block before this event and queue it again
+						//next block. Only more events than the queue holds on one sample
+						//end up a sample late.
+						if(!queued){
+							numSamples = (int)Math.max(1, eventFrame - frame);
+							break;
+						}
+					}
+					next++;
+				}
+
+				engine.getSamples(buffer, numSamples);
+				wav.write(buffer[numVoices], numSamples);
+				frame += numSamples;
+
+				//Stop once everything has been played and has died away
+				if(next == events.size() && frame >= endFrame && envelope.getActiveCount() == 0){
+					if(quietFrom < 0)
+						quietFrom = frame;
+					if(frame - quietFrom >= tail)
+						break;
+				}else{
+					quietFrom = -1;
+				}
+			}
+		}finally{
+			//Patches the header, so even a failed render leaves a playable file
+			wav.close();
+		}
+		renderNanos = System.nanoTime() - start;
+		framesRendered = frame;
+		return frame;
+	}
+
+	public long getFramesRendered(){
+		return framesRendered;
+	}
+
+	public double getRenderSeconds(){
+		return renderNanos / 1e9;
+	}
+
+	//Raw throughput of the last render
+	public double getSamplesPerSecond(){
+		return framesRendered / getRenderSeconds();
+	}
+
+	//How many times faster than real time the last render was
+	public double getSpeedFactor(){
+		return getSamplesPerSecond() / config.getSampleRate();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2){
+			System.err.println("Usage: OfflineRenderer script.txt out.wav [low | default | safe | rate,block,deviceBlocks] [impulse.wav]");
+			System.exit(2);
+		}
+
+		AudioConfig config = AudioConfig.DEFAULT;
+		if(args.length > 2)
+			config = AudioConfig.parse(args[2]);
+
+		FileReader in = new FileReader(args[0]);
+		NoteScript script;
+		try{
+			script = NoteScript.parse(in);
+		}finally{
+			in.close();
+		}
+
+		OfflineRenderer renderer = new OfflineRenderer(config, EnvelopeGenerator.DEFAULT_VOICES);
+		if(args.length > 3)
+			renderer.setImpulse(WavReader.readMono(Paths.get(args[3]), config.getSampleRate()));
+		renderer.render(script, Paths.get(args[1]));
+
+		System.out.printf("%d samples in %.3f s: %.0f samples/s, %.1fx real time%n",
+				renderer.getFramesRendered(), renderer.getRenderSeconds(),
+				renderer.getSamplesPerSecond(), renderer.getSpeedFactor());
+	}
+}
@@ -1,11 +1,11 @@
 package org.ssg.justsynth;
 
-import org.apache.commons.math3.fraction.Fraction;
 import org.craigl.softsynth.*;
 
 import org.newdawn.slick.Color;
 import org.newdawn.slick.GameContainer;
 import org.newdawn.slick.Graphics;
+import org.newdawn.slick.Image;
 import org.newdawn.slick.Input;
 import org.newdawn.slick.KeyListener;
 import org.newdawn.slick.SlickException;
@@ -17,8 +17,8 @@ public class SynthState extends BasicGameState implements KeyListener{
 
 	public int stateID;
 	
+	Engine engine;
 	BasicOscillator osc;
-	VCA vca;
 	SamplePlayer player;
 	
 	//Used to prevent display until the screen is switched
@@ -38,6 +38,17 @@ public class SynthState extends BasicGameState implements KeyListener{
 	//Whether the key is being held down. Used in drawing the keyboard.
 	private boolean[] noteOn = new boolean[BasicOscillator.NUM_NOTES];
 	private Color keyColor;
+	//Shades of keyColor, worked out when it changes
+	private Color pressedWhiteColor;
+	private Color baseNoteColor;
+	
+	private static final Color EQUAL_TEMPERED_GREY = new Color(30,30,30);
+	private static final Color BLACK_KEY_GREY = new Color(70,70,70);
+	
+	//The table, headings and keyboard with no keys pressed. Redrawn only when
+	//layerDirty is set, so each frame just adds the pressed keys on top.
+	private Image staticLayer;
+	private boolean layerDirty;
 	
 	//The index is the keyboard key number (explained in comments at the KeyPressed() method)
 	//The value is the note to be played upon pressing that key
@@ -51,27 +62,39 @@ public class SynthState extends BasicGameState implements KeyListener{
 							"Y","7","U","8","I","O","0","P","-","[","]","","\\"};
 	
 	//Data for drawing the note ratios table
-	private String[][][] table;
+	private IntervalTable table;
+	private IntervalTableCache tableCache;
 	private String[] rowHeaders = {"A","A#","B","C","C#","D","D#","E","F","F#","G","G#"};
 	private String[] colHeaders = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11"};
 	
-	private String[] tuningNames = {"Equal Tempered", "Just 7-Limit", "Just 5-Limit (Extended)", "Just 5-Limit (Symmetric)", "Pythagorean"};
+	//Scales that can be chosen after the built in tunings, null if there is no library
+	private ScalaIndex library;
+	private int numBuiltIn;
+	//The oscillator's tuning for each library scale, -1 until it is first chosen
+	private int[] libraryTunings;
 	
-	private double[][] centIntervals;
 	private int tuning;
+	//Position of the tuning in the built in tunings followed by the library
+	private int selection;
 	private int baseNote;
 	
 	//If displayCents is true, show cents, else, show fractions, in the table
 	private boolean displayCents;
 	
-	public SynthState(int i, BasicOscillator o, VCA v, SamplePlayer s, Color c) {
+	public SynthState(int i, Engine e, SamplePlayer s, Color c, ScalaIndex lib) {
 		super();
 		stateID = i;
 		
-		osc = o;
-		vca = v;
+		engine = e;
+		osc = e.getOscillator();
 		player = s;
 		
+		library = lib;
+		numBuiltIn = osc.getNumTunings();
+		libraryTunings = new int[library == null ? 0 : library.getCount()];
+		for(int j=0; j<libraryTunings.length; j++)
+			libraryTunings[j] = -1;
+		
 		//Initialize the rest of the key drawing data
 		for(int j=0; j<xCoords.length; j++){
 			if(heights[j] == heights[0]){//white key
@@ -87,13 +110,13 @@ public class SynthState extends BasicGameState implements KeyListener{
 		for(int j=0;j<xCoords.length;j++)
 			xCoords[j]+=xOffset;
 		
-		keyColor = c;
+		setKeyColor(c);
 		
 		tuning = BasicOscillator.EQUAL_TEMPERED;
+		selection = tuning;
 		baseNote = 0;//Tuned to A by default
 		
-		table = new String[12][12][2];
-		centIntervals = new double[12][12];
+		tableCache = new IntervalTableCache(osc);
 		
 		displayCents = true;
 		recalcTable();
@@ -121,11 +144,64 @@ public class SynthState extends BasicGameState implements KeyListener{
 		//player.stopPlayer();
 	}
 	
-	public void render(GameContainer gc, StateBasedGame sbg, Graphics g){
+	public void render(GameContainer gc, StateBasedGame sbg, Graphics g) throws SlickException{
 		if(!black){
+			//Everything but the pressed keys only changes when the table or colours do
+			if(staticLayer == null){
+				staticLayer = new Image(gc.getWidth(), gc.getHeight());
+				layerDirty = true;
+			}
+			if(layerDirty){
+				Graphics lg = staticLayer.getGraphics();
+				lg.setBackground(Color.black);
+				lg.clear();
+				drawStaticLayer(lg);
+				lg.flush();
+				layerDirty = false;
+			}
+			g.drawImage(staticLayer, 0, 0);
 			
+			//Pressed white keys, then the black keys that overlap them, then pressed black keys
+			boolean whitePressed = false;
+			for(int i=0; i<xCoords.length; i++){
+				if(noteOn[i] && heights[i]==heights[0]){
+					drawKey(g, i, pressedWhiteColor);
+					whitePressed = true;
+				}
+			}
+			if(whitePressed){
+				for(int i=0; i<xCoords.length; i++){
+					if(heights[i]==heights[1]){
+						int x2 = xCoords[i]+widths[i]+1;
+						int y2 = yCoord+heights[i]+1;
+						staticLayer.draw(xCoords[i], yCoord, x2, y2, xCoords[i], yCoord, x2, y2);
+					}
+				}
+			}
+			for(int i=0; i<xCoords.length; i++){
+				if(noteOn[i] && heights[i]==heights[1])
+					drawKey(g, i, keyColor);
+			}
+		}
+	}
+	
+	//Draws one key with its outline and name
+	private void drawKey(Graphics g, int i, Color fill){
+		g.setColor(fill);
+		g.fillRect(xCoords[i], yCoord, widths[i], heights[i]);
+		g.setColor(Color.white);
+		g.drawRect(xCoords[i], yCoord, widths[i], heights[i]);
+		if(heights[i]==heights[0])
+			g.drawString(keyNames[i], xCoords[i]+25, yCoord+120);
+		else
+			g.drawString(keyNames[i], xCoords[i]+15, yCoord+70);
+	}
+	
+	//Draws the table, the headings and the keyboard with no keys pressed
+	private void drawStaticLayer(Graphics g){
+		
 		if(tuning == BasicOscillator.EQUAL_TEMPERED){
-			g.setColor(new Color(30,30,30));
+			g.setColor(EQUAL_TEMPERED_GREY);
 			g.fillRect(50,458,900,500);
 			g.setColor(Color.white);
 		}		
@@ -133,7 +209,7 @@ public class SynthState extends BasicGameState implements KeyListener{
 		//Coloured vertical bars over the baseNote
 		for(int i=0; i<xCoords.length;i++){
 			if(tuning!= BasicOscillator.EQUAL_TEMPERED && i%12 == baseNote){
-				g.setColor(keyColor.darker(.5f));
+				g.setColor(baseNoteColor);
 				g.fillRect(xCoords[i], 42, widths[i], 800);
 				g.setColor(Color.white);
 			}
@@ -141,37 +217,19 @@ public class SynthState extends BasicGameState implements KeyListener{
 
 		//Draw the white keys
 		for(int i=0; i<xCoords.length; i++){
-			if(heights[i]==heights[0]){
-				if(noteOn[i]){
-					g.setColor(keyColor.darker(.4f));
-				}else{
-					g.setColor(Color.black);
-				}
-				g.fillRect(xCoords[i], yCoord, widths[i], heights[i]);
-				g.setColor(Color.white);
-				g.drawRect(xCoords[i], yCoord, widths[i], heights[i]);
-				g.drawString(keyNames[i], xCoords[i]+25, yCoord+120);
-			}
+			if(heights[i]==heights[0])
+				drawKey(g, i, Color.black);
 		}
 		
 		//Draw the black keys
 		for(int i=0; i<xCoords.length; i++){
-			if(heights[i]==heights[1]){
-				if(noteOn[i]){
-					g.setColor(keyColor);
-				}else{
-					g.setColor(new Color(70,70,70));
-				}
-				g.fillRect(xCoords[i], yCoord, widths[i], heights[i]);
-				g.setColor(Color.white);
-				g.drawRect(xCoords[i], yCoord, widths[i], heights[i]);
-				g.drawString(keyNames[i], xCoords[i]+15, yCoord+70);
-			}
+			if(heights[i]==heights[1])
+				drawKey(g, i, BLACK_KEY_GREY);
 		}
 		
 		g.drawString("A440: "+(Math.round(osc.getA()*10.0)/10.0), 848, 678);
 		
-		g.drawString(tuningNames[tuning], 50, 678);
+		g.drawString(osc.getTuningName(tuning), 50, 678);
 		
 		//Draw the Ratios table. 13x13, each cell is 71x32 px
 		
@@ -180,13 +238,10 @@ public class SynthState extends BasicGameState implements KeyListener{
 		g.fillRect(50, 42 , 60+12*70 , 416);
 
 		//Draw the shading to show how different the interval is from the reference
-		for(int i=0 ; i < table.length ; i++){
-			for(int j=0 ; j < table[0].length; j++){
-				double a = Math.round(centIntervals[i][j]);
-				double b = Math.round(centIntervals[baseNote][j]);
-				int c = (int)Math.abs(b-a) * 3;
-				if( c != 0){
-					g.setColor(new Color(c,c,c));
+		for(int i=0 ; i < IntervalTable.SIZE ; i++){
+			for(int j=0 ; j < IntervalTable.SIZE; j++){
+				if(table.getShade(i, j) != null){
+					g.setColor(table.getShade(i, j));
 					g.fillRect((j)*71+98, (i+1)*32+42 , 70, 31);
 				}
 			}
@@ -205,9 +260,9 @@ public class SynthState extends BasicGameState implements KeyListener{
 		
 		//Draw a horizontal bar through the baseNote
 		if(tuning == BasicOscillator.EQUAL_TEMPERED){
-			g.setColor(new Color(30,30,30));
+			g.setColor(EQUAL_TEMPERED_GREY);
 		}else{
-			g.setColor(keyColor.darker(.5f));
+			g.setColor(baseNoteColor);
 		}
 		g.fillRect(0, baseNote*32 + 42+32+1, 1000, 31);
 		g.setColor(Color.white);
@@ -220,21 +275,20 @@ public class SynthState extends BasicGameState implements KeyListener{
 			g.drawString(colHeaders[i], 125+i*71, 51);
 		
 		//Put the numbers in the table
-		for(int i=0; i< table.length; i++)//i is rows, j is columns
-			for(int j=0;j<table[0].length;j++){
-				if(displayCents){
-					g.drawString(table[i][j][0], (j)*71+101, (i+1)*32+51);
+		for(int i=0; i< IntervalTable.SIZE; i++)//i is rows, j is columns
+			for(int j=0;j<IntervalTable.SIZE;j++){
+				if(table.isCents()){
+					g.drawString(table.getTop(i, j), (j)*71+101, (i+1)*32+51);
 				}else{
-					if(table[i][j][0].length() < 4){
-						g.drawString(table[i][j][0]+"/"+table[i][j][1], (j)*71+101, (i+1)*32+51);					
+					if(table.getTop(i, j).length() < 4){
+						g.drawString(table.getTop(i, j)+"/"+table.getBottom(i, j), (j)*71+101, (i+1)*32+51);					
 					}else{
-						g.drawString(table[i][j][0], (j)*71+108, (i+1)*32+42);
+						g.drawString(table.getTop(i, j), (j)*71+108, (i+1)*32+42);
 						g.drawLine((j)*71+105, (i+1)*32+58, (j)*71+155, (i+1)*32+58);
-						g.drawString(table[i][j][1], (j)*71+108, (i+1)*32+58);
+						g.drawString(table.getBottom(i, j), (j)*71+108, (i+1)*32+58);
 					}
 				}
 			}
-		}
 	}
 	
 	public void update(GameContainer gc, StateBasedGame sbg, int delta) throws SlickException {
@@ -259,11 +313,11 @@ public class SynthState extends BasicGameState implements KeyListener{
 		//Input.KEY_Z is 44
 		if(arg0>=2 && arg0<=27 || arg0==43){//If a note key is pressed, activate the note.
 			if(arg0 == 43){
-				vca.noteOn(BasicOscillator.NUM_NOTES-1);
+				engine.noteOn(BasicOscillator.NUM_NOTES-1);
 				noteOn[BasicOscillator.NUM_NOTES-1] = true;
 			}else{
 				if(keyMap[arg0]!=-1){
-					vca.noteOn(keyMap[arg0]);
+					engine.noteOn(keyMap[arg0]);
 					noteOn[keyMap[arg0]] = true;
 				}
 			}
@@ -274,31 +328,19 @@ public class SynthState extends BasicGameState implements KeyListener{
 			osc.setTuning(tuning,baseNote);
 			recalcTable();
 		}else if(arg0 >= 44 && arg0 <= 48){//Changing the tuning system
-			tuning = arg0 - 44;
-			if(tuning == BasicOscillator.EQUAL_TEMPERED)
-				displayCents = true;
-			osc.setTuning(tuning, baseNote);
+			selectTuning(arg0 - 44);
 			//System.out.println(tuning);
-			recalcTable();
 		}else if(arg0 == Input.KEY_LSHIFT){//LSHIFT changes the display type of the table
 			displayCents = !displayCents;
-			if(tuning == BasicOscillator.EQUAL_TEMPERED)
+			if(osc.getIntervals(tuning) == null)
 				displayCents = true;
 			recalcTable();
 		}else if(arg0 == Input.KEY_SLASH){//Changes the highlight colour
-			keyColor = new Color((int)(Math.random()*256),(int)( Math.random()*256), (int)(Math.random()*256));
+			setKeyColor(new Color((int)(Math.random()*256),(int)( Math.random()*256), (int)(Math.random()*256)));
 		}else if(arg0 == Input.KEY_LEFT){//Changes the tuning system
-			tuning = mod(tuning-1, osc.tunings.size());
-			if(tuning == BasicOscillator.EQUAL_TEMPERED)
-				displayCents = true;
-			osc.setTuning(tuning,baseNote);
-			recalcTable();
+			selectTuning(mod(selection-1, numBuiltIn + libraryTunings.length));
 		}else if(arg0 == Input.KEY_RIGHT){//Changes the tuning system
-			tuning = mod(tuning+1, osc.tunings.size());
-			if(tuning == BasicOscillator.EQUAL_TEMPERED)
-				displayCents = true;
-			osc.setTuning(tuning,baseNote);
-			recalcTable();
+			selectTuning(mod(selection+1, numBuiltIn + libraryTunings.length));
 		}else if(arg0 == Input.KEY_UP){//Changes the base note
 			baseNote = mod(baseNote-1, 12);
 			osc.setTuning(tuning,baseNote);
@@ -313,11 +355,11 @@ public class SynthState extends BasicGameState implements KeyListener{
 	public void keyReleased(int arg0, char arg1) {
 		if(arg0>1 && arg0<=27 || arg0==43){//Release a note
 			if(arg0 == 43){
-				vca.noteOff(BasicOscillator.NUM_NOTES-1);
+				engine.noteOff(BasicOscillator.NUM_NOTES-1);
 				noteOn[BasicOscillator.NUM_NOTES-1] = false;
 			}else{
 				if(keyMap[arg0]!=-1){
-					vca.noteOff(keyMap[arg0]);
+					engine.noteOff(keyMap[arg0]);
 					noteOn[keyMap[arg0]] = false;
 				}
 			}
@@ -329,53 +371,35 @@ public class SynthState extends BasicGameState implements KeyListener{
 		return stateID;
 	}
 	
-	//Recalculates values for the ratios table
-	public void recalcTable(){
-		if(displayCents || tuning == BasicOscillator.EQUAL_TEMPERED){
-			//Calculate the intervals in cents
-			centIntervals = new double[12][12];
-			double[] freqs = osc.getFrequencies();
-			for(int i=0; i<centIntervals.length; i++){
-				for(int j=0; j<centIntervals[0].length; j++){
-					centIntervals[mod(i+baseNote,12)][j] = 1200.0 * Math.log(freqs[mod(i+j+baseNote,12)]/freqs[mod(i+baseNote,12)]) / Math.log(2.0);
-					if(centIntervals[mod(i+baseNote,12)][j]<0)
-						centIntervals[mod(i+baseNote,12)][j]+=1200;
-				}
-			}
-			
-			//Put centIntervals into table
-			for(int i=0; i<centIntervals.length; i++){
-				for(int j=0; j<centIntervals[0].length; j++){
-					table[i][j][0] = ""+(int)Math.round(centIntervals[i][j]);
-					table[i][j][1] = "";
-				}
-			}
+	//Chooses a tuning by its position in the built in tunings followed by the library.
+	//Library scales are only decoded the first time they are chosen.
+	private void selectTuning(int sel){
+		selection = sel;
+		if(sel < numBuiltIn){
+			tuning = sel;
 		}else{
-			//Calculate the intervals as fractions
-			//Second ratio divided by first
-			//Row determines offset from base note
-			//Column determines interval step
-			Fraction[][] f = new Fraction[12][12];
-			Fraction[] intervals = osc.getIntervals(tuning);
-			for(int i=0; i<f.length; i++){
-				for(int j=0; j<f[0].length; j++){
-					int factor = 1;
-					if(i+j>=12)//If you've gone up an octave
-						factor = 2;
-					f[mod(i+baseNote,12)][j] = intervals[mod(i+j,12)].divide(intervals[i]).multiply(factor);
-				}
-			}
-			
-			//Copy f into the table
-			for(int i=0; i<f.length; i++){
-				for(int j=0; j<f[0].length; j++){
-					table[i][j][0] = ""+f[i][j].getNumerator();
-					table[i][j][1] = ""+f[i][j].getDenominator();
-				}
-			}
-				//table[i][j] = ""+Math.round(100*f[i][j].doubleValue());
+			int i = sel - numBuiltIn;
+			if(libraryTunings[i] < 0)
+				libraryTunings[i] = osc.addTuning(library.getScale(i), library.getMapping(i));
+			tuning = libraryTunings[i];
 		}
-		
+		if(osc.getIntervals(tuning) == null)
+			displayCents = true;
+		osc.setTuning(tuning, baseNote);
+		recalcTable();
+	}
+	
+	private void setKeyColor(Color c){
+		keyColor = c;
+		pressedWhiteColor = keyColor.darker(.4f);
+		baseNoteColor = keyColor.darker(.5f);
+		layerDirty = true;
+	}
+	
+	//Picks the ratios table for the current tuning, base note and display mode
+	public void recalcTable(){
+		table = tableCache.get(tuning, baseNote, displayCents);
+		layerDirty = true;
 	}
 	
 	private int mod(int x, int y)
@@ -0,0 +1,100 @@
+package org.ssg.justsynth.bench;
+
+import org.craigl.softsynth.AudioConfig;
+import org.craigl.softsynth.FFT;
+import org.craigl.softsynth.PolyBlepOscillator;
+
+//Measures how much of each waveform is aliasing, for the naive waves and the
+//PolyBLEP ones. A long stretch of each wave is windowed and transformed, and
+//every bin that isn't within a few bins of a harmonic below Nyquist counts as
+//aliasing. The result is the aliased power relative to the harmonic power.
+//A frequency that divides the sample rate aliases onto its own harmonics, so it
+//reads as clean for both.
+//
+//Usage: AliasingCheck [config] [frequency,frequency,...]
+public class AliasingCheck {
+
+	private static final int SIZE = 1 << 16;
+	//Bins either side of a harmonic that belong to it, covers the window's main lobe
+	private static final int LOBE_BINS = 4;
+
+	private static final int[] WAVES = {PolyBlepOscillator.WAVE_SAW, PolyBlepOscillator.WAVE_SQUARE, PolyBlepOscillator.WAVE_TRIANGLE};
+	private static final String[] WAVE_NAMES = {"", "saw", "square", "triangle"};
+
+	public static void main(String[] args) {
+
+		AudioConfig config = (args.length > 0) ? AudioConfig.parse(args[0]) : AudioConfig.DEFAULT;
+		//The lowest, middle and highest keys of the keyboard, then higher notes bent or transposed up
+		double[] freqs = {110.0, 220.0, 392.0, 1000.0, 2500.0};
+		if (args.length > 1) {
+			String[] parts = args[1].split(",");
+			freqs = new double[parts.length];
+			for (int i = 0; i < parts.length; i++)
+				freqs[i] = Double.parseDouble(parts[i]);
+		}
+
+		int sampleRate = config.getSampleRate();
+		FFT fft = new FFT(SIZE);
+		double[] window = blackmanHarris(SIZE);
+
+		System.out.println(sampleRate + " Hz, aliased power relative to the harmonics");
+		System.out.printf("%-9s %9s %10s %10s %12s%n", "wave", "freq Hz", "naive dB", "blep dB", "improvement");
+		for (int wave : WAVES) {
+			for (double f : freqs) {
+				double naive = aliasingDb(wave, f, sampleRate, false, fft, window);
+				double blep = aliasingDb(wave, f, sampleRate, true, fft, window);
+				System.out.printf("%-9s %9.1f %10.1f %10.1f %11.1f%n", WAVE_NAMES[wave], f, naive, blep, naive - blep);
+			}
+		}
+	}
+
+	private static double aliasingDb(int wave, double freq, int sampleRate, boolean bandLimited, FFT fft, double[] window) {
+
+		double[] re = new double[SIZE];
+		double[] im = new double[SIZE];
+		double dt = freq / sampleRate;
+		double t = 0.0;
+		for (int i = 0; i < SIZE; i++) {
+			double v = bandLimited ? PolyBlepOscillator.sample(wave, t, dt, PolyBlepOscillator.DEFAULT_PULSE_WIDTH)
+					: PolyBlepOscillator.naiveSample(wave, t, PolyBlepOscillator.DEFAULT_PULSE_WIDTH);
+			re[i] = v * window[i];
+			t += dt;
+			if (t >= 1.0)
+				t -= 1.0;
+		}
+		fft.forward(re, im);
+
+		//Mark the bins around DC and every harmonic below Nyquist
+		int half = SIZE / 2;
+		boolean[] harmonic = new boolean[half + 1];
+		double binHz = (double)sampleRate / SIZE;
+		for (int h = 0; h * freq < sampleRate / 2.0; h++) {
+			int centre = (int)Math.round(h * freq / binHz);
+			for (int b = centre - LOBE_BINS; b <= centre + LOBE_BINS; b++) {
+				if (b >= 0 && b <= half)
+					harmonic[b] = true;
+			}
+		}
+
+		double signal = 0;
+		double alias = 0;
+		for (int b = 1; b <= half; b++) {
+			double power = re[b] * re[b] + im[b] * im[b];
+			if (harmonic[b])
+				signal += power;
+			else
+				alias += power;
+		}
+		return 10.0 * Math.log10(alias / signal);
+	}
+
+	//Four term Blackman-Harris, sidelobes below -92 dB
+	private static double[] blackmanHarris(int n) {
+		double[] w = new double[n];
+		for (int i = 0; i < n; i++) {
+			double x = 2.0 * Math.PI * i / (n - 1);
+			w[i] = 0.35875 - 0.48829 * Math.cos(x) + 0.14128 * Math.cos(2 * x) - 0.01168 * Math.cos(3 * x);
+		}
+		return w;
+	}
+}
@@ -0,0 +1,58 @@
+package org.ssg.justsynth.bench;
+
+import org.craigl.softsynth.AudioConfig;
+import org.craigl.softsynth.BasicOscillator;
+import org.craigl.softsynth.EnvelopeGenerator;
+import org.craigl.softsynth.VCA;
+import org.ssg.justsynth.Engine;
+import org.ssg.justsynth.Mixer;
+
+//An Engine built around the given oscillator, the same chain JustSynth plays,
+//with a number of notes held down in sustain. Time runs on the sample clock,
+//so two chains given the same notes render the same samples.
+class BenchChain {
+
+	final AudioConfig config;
+	final Engine engine;
+	final BasicOscillator osc;
+	final EnvelopeGenerator envelope;
+	final VCA vca;
+	final Mixer mixer;
+	final float[][] buffer;
+	final int blockSize;
+
+	BenchChain(AudioConfig config, BasicOscillator osc){
+		this.config = config;
+		this.osc = osc;
+		blockSize = config.getBlockSize();
+
+		engine = new Engine(config, osc);
+		envelope = engine.getEnvelope();
+		vca = engine.getVCA();
+		mixer = engine.getMixer();
+
+		envelope.setSampleClock(true);
+
+		buffer = engine.newBuffer();
+	}
+
+	//Presses the first held keys and renders until they are all in sustain.
+	//Notes are never released, so they stay there for the whole run.
+	void hold(int held){
+		for(int i=0;i<held;i++)
+			envelope.noteOn(i, envelope.frameToNanos(0));
+
+		int settle = (int)(0.5 * config.getSampleRate() / blockSize) + 1;
+		for(int i=0;i<settle;i++)
+			render();
+	}
+
+	int render(){
+		return engine.getSamples(buffer, blockSize);
+	}
+
+	//Real time budget of one buffer
+	double budgetNanos(){
+		return config.getBlockTimeInSecs() * 1e9;
+	}
+}
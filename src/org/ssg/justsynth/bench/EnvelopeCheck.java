@@ -0,0 +1,80 @@
+package org.ssg.justsynth.bench;
+
+import java.util.Random;
+
+import org.craigl.softsynth.AudioConfig;
+import org.craigl.softsynth.EnvelopeGenerator;
+
+//Drives two envelope generators with the same random note events, one through
+//getValue every sample and one through advance in blocks of random length,
+//and exits with a non-zero status if any value differs or leaves 0.0 to 1.0.
+//Both the linear and the exponential curves are checked.
+public class EnvelopeCheck {
+
+	private static final int NUM_BLOCKS = 200000;
+	private static final int MAX_BLOCK = 700;
+
+	public static void main(String[] args) {
+		check(EnvelopeGenerator.CURVE_LINEAR, "linear");
+		check(EnvelopeGenerator.CURVE_EXPONENTIAL, "exponential");
+	}
+
+	private static void check(int curve, String name) {
+
+		Random random = new Random(1);
+		int numVoices = 4;
+
+		EnvelopeGenerator perSample = new EnvelopeGenerator(numVoices, numVoices, AudioConfig.DEFAULT.getSampleRate());
+		EnvelopeGenerator block = new EnvelopeGenerator(numVoices, numVoices, AudioConfig.DEFAULT.getSampleRate());
+		perSample.setCurve(curve);
+		block.setCurve(curve);
+		setParameters(perSample, 5, 3, 0.4, 7);
+		setParameters(block, 5, 3, 0.4, 7);
+
+		double[] gain = new double[MAX_BLOCK];
+		long compared = 0;
+
+		for(int b=0;b<NUM_BLOCKS;b++){
+			//Events are raised directly on the voices, between blocks
+			for(int v=0;v<numVoices;v++){
+				int r = random.nextInt(40);
+				if(r == 0){
+					perSample.noteOn[v] = true;
+					block.noteOn[v] = true;
+				}else if(r == 1){
+					perSample.noteOff[v] = true;
+					block.noteOff[v] = true;
+				}
+			}
+			if(random.nextInt(500) == 0){
+				int attack = 1 + random.nextInt(20);
+				int decay = 1 + random.nextInt(20);
+				double sustain = random.nextDouble();
+				int release = 1 + random.nextInt(20);
+				setParameters(perSample, attack, decay, sustain, release);
+				setParameters(block, attack, decay, sustain, release);
+			}
+			int numSamples = 1 + random.nextInt(MAX_BLOCK);
+			for(int v=0;v<numVoices;v++){
+				block.advance(v, gain, 0, numSamples);
+				for(int i=0;i<numSamples;i++){
+					double expected = perSample.getValue(v);
+					if(expected != gain[i]){
+						System.out.println(name+": mismatch in block "+b+", voice "+v+", sample "+i+": "+expected+" != "+gain[i]);
+						System.exit(1);
+					}
+					if(gain[i] < -1e-9 || gain[i] > 1.0 + 1e-9){
+						System.out.println(name+": out of range in block "+b+", voice "+v+", sample "+i+": "+gain[i]);
+						System.exit(1);
+					}
+				}
+				compared += numSamples;
+			}
+		}
+		System.out.println(name+": "+compared+" samples identical");
+	}
+
+	private static void setParameters(EnvelopeGenerator env, int attack, int decay, double sustain, int release){
+		env.setParameters(attack, decay, sustain, release);
+	}
+}
@@ -0,0 +1,87 @@
+package org.ssg.justsynth.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.craigl.softsynth.SampleKernels;
+
+//Runs the vector and scalar kernels on the same random blocks, including values past
+//full scale and the halfway points where rounding goes either way, and exits with a
+//non-zero status if any output differs. Needs --add-modules jdk.incubator.vector.
+public class KernelCheck {
+
+	public static void main(String[] args) {
+
+		SampleKernels vector = SampleKernels.vector();
+		if(vector == null){
+			System.out.println("No vector kernels, run with --add-modules jdk.incubator.vector");
+			System.exit(1);
+		}
+		SampleKernels scalar = SampleKernels.scalar();
+		Random random = new Random(1);
+		int failures = 0;
+
+		//Odd lengths leave a tail for the scalar loop
+		for(int trial=0; trial<2000; trial++){
+			int n = 1 + random.nextInt(1100);
+			int voices = 1 + random.nextInt(24);
+			float[][] rows = new float[voices][n];
+			for(int v=0; v<voices; v++)
+				for(int i=0; i<n; i++)
+					rows[v][i] = sample(random);
+			double[] gain = new double[n];
+			for(int i=0; i<n; i++)
+				gain[i] = random.nextDouble();
+			int[] order = new int[voices];
+			for(int v=0; v<voices; v++)
+				order[v] = voices-1-v;
+
+			float[] a = rows[0].clone();
+			float[] b = rows[0].clone();
+			scalar.applyGain(a, gain, n);
+			vector.applyGain(b, gain, n);
+			failures += report("applyGain", trial, Arrays.equals(a, b));
+
+			float[] mixA = new float[n];
+			float[] mixB = new float[n];
+			scalar.mix(rows, order, voices, mixA, n);
+			vector.mix(rows, order, voices, mixB, n);
+			failures += report("mix", trial, Arrays.equals(mixA, mixB));
+			failures += report("countClipped", trial, scalar.countClipped(mixA, n) == vector.countClipped(mixA, n));
+
+			byte[] pcmA = new byte[n*2];
+			byte[] pcmB = new byte[n*2];
+			scalar.toPCM(rows[0], pcmA, n);
+			vector.toPCM(rows[0], pcmB, n);
+			failures += report("toPCM", trial, Arrays.equals(pcmA, pcmB));
+		}
+
+		System.out.println(vector.getName()+": "+(failures == 0 ? "identical to scalar" : failures+" blocks differ"));
+		if(failures > 0)
+			System.exit(1);
+	}
+
+	//Mostly ordinary samples, with some clipped ones, exact and nearly exact halfway points, and NaN
+	private static float sample(Random random){
+		switch(random.nextInt(8)){
+			case 0:
+				return (random.nextFloat() - 0.5f) * 8.0f;
+			case 1:
+				return ((random.nextInt(65536) - 32768) + 0.5f) / Short.MAX_VALUE;
+			case 2:
+				return Math.nextUp(((random.nextInt(65536) - 32768) + 0.5f) / Short.MAX_VALUE);
+			case 3:
+				return Math.nextDown(((random.nextInt(65536) - 32768) + 0.5f) / Short.MAX_VALUE);
+			case 4:
+				return random.nextInt(100) == 0 ? Float.NaN : 0.0f;
+		}
+		return random.nextFloat() * 2.0f - 1.0f;
+	}
+
+	private static int report(String kernel, int trial, boolean same){
+		if(same)
+			return 0;
+		System.out.println(kernel+" differs in block "+trial);
+		return 1;
+	}
+}
@@ -0,0 +1,154 @@
+package org.ssg.justsynth.bench;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Transmitter;
+
+import org.craigl.softsynth.AudioConfig;
+import org.craigl.softsynth.MidiReceiver;
+import org.craigl.softsynth.WavetableOscillator;
+
+//Plays MIDI through a MidiReceiver into a chain rendered at real time pace, then
+//reports how far the sample each note landed on was from when its message arrived.
+//With a file the software Sequencer plays it; without one a synthetic Transmitter
+//plays random notes, velocities, pitch bends and sustain pedal for a few seconds.
+//Usage: MidiCheck [file.mid] [config]
+public class MidiCheck {
+
+	public static void main(String[] args) throws Exception {
+
+		AudioConfig config = (args.length > 1) ? AudioConfig.parse(args[1]) : AudioConfig.DEFAULT;
+		BenchChain chain = new BenchChain(config, new WavetableOscillator());
+		//Events are stamped with System.nanoTime, so render against the real clock
+		chain.envelope.setSampleClock(false);
+
+		MidiReceiver receiver = new MidiReceiver(chain.envelope, chain.osc);
+
+		Sequencer sequencer = null;
+		SyntheticTransmitter synthetic = null;
+		if (args.length > 0) {
+			sequencer = MidiSystem.getSequencer(false);
+			sequencer.open();
+			sequencer.setSequence(MidiSystem.getSequence(new File(args[0])));
+			sequencer.getTransmitter().setReceiver(receiver);
+			sequencer.start();
+		} else {
+			synthetic = new SyntheticTransmitter(5.0, 1234);
+			synthetic.setReceiver(receiver);
+			synthetic.start();
+		}
+
+		//Render one block per block time, as the audio device would ask for them
+		long blockNanos = (long)(config.getBlockTimeInSecs() * 1e9);
+		long next = System.nanoTime();
+		long tailBlocks = (long)(1.0 / config.getBlockTimeInSecs()) + 1;
+		long blocksLeft = tailBlocks;
+		while (blocksLeft > 0) {
+			boolean playing = (sequencer != null) ? sequencer.isRunning() : synthetic.isAlive();
+			if (!playing)
+				blocksLeft--;
+			chain.render();
+			next += blockNanos;
+			LockSupport.parkNanos(next - System.nanoTime());
+		}
+		if (sequencer != null)
+			sequencer.close();
+
+		System.out.println(config);
+		System.out.println(receiver.getNotesReceived() + " notes received, " + receiver.getIgnoredNotes() + " ignored, "
+				+ receiver.getDroppedNotes() + " note ons and " + receiver.getDroppedNoteOffs() + " note offs dropped");
+		System.out.println("Scheduling: " + chain.envelope.getSchedulingStats());
+		System.out.printf("Block time %.0f us, one sample %.1f us%n", blockNanos / 1000.0, 1e6 / config.getSampleRate());
+		System.out.println("Voices still sounding after the tail: " + chain.envelope.getActiveCount());
+	}
+
+	//A Transmitter that makes up a performance on its own thread
+	static class SyntheticTransmitter extends Thread implements Transmitter {
+
+		private volatile Receiver receiver;
+		private double seconds;
+		private Random random;
+
+		SyntheticTransmitter(double seconds, long seed) {
+			this.seconds = seconds;
+			random = new Random(seed);
+			setDaemon(true);
+		}
+
+		public void setReceiver(Receiver r) {
+			receiver = r;
+		}
+
+		public Receiver getReceiver() {
+			return receiver;
+		}
+
+		public void close() {
+			receiver = null;
+		}
+
+		public void run() {
+
+			long end = System.nanoTime() + (long)(seconds * 1e9);
+			int lowest = MidiReceiver.DEFAULT_LOWEST_NOTE;
+			long[] releaseAt = new long[24];
+			boolean pedal = false;
+
+			try {
+				while (System.nanoTime() < end) {
+					long now = System.nanoTime();
+
+					//Let go of notes whose time is up
+					for (int k = 0; k < releaseAt.length; k++) {
+						if (releaseAt[k] != 0 && now >= releaseAt[k]) {
+							send(ShortMessage.NOTE_OFF, lowest + k, 0);
+							releaseAt[k] = 0;
+						}
+					}
+
+					int choice = random.nextInt(20);
+					if (choice < 14) {
+						int k = random.nextInt(releaseAt.length);
+						if (releaseAt[k] == 0) {
+							send(ShortMessage.NOTE_ON, lowest + k, 20 + random.nextInt(108));
+							releaseAt[k] = now + (20 + random.nextInt(300)) * 1000000L;
+						}
+					} else if (choice < 18) {
+						int bend = 8192 + (int)(random.nextGaussian() * 1500);
+						bend = Math.max(0, Math.min(16383, bend));
+						send(ShortMessage.PITCH_BEND, bend & 0x7F, bend >> 7);
+					} else {
+						pedal = !pedal;
+						send(ShortMessage.CONTROL_CHANGE, 64, pedal ? 127 : 0);
+					}
+					Thread.sleep(1 + random.nextInt(40));
+				}
+
+				//Leave nothing sounding
+				for (int k = 0; k < releaseAt.length; k++) {
+					if (releaseAt[k] != 0)
+						send(ShortMessage.NOTE_OFF, lowest + k, 0);
+				}
+				send(ShortMessage.CONTROL_CHANGE, 64, 0);
+				send(ShortMessage.PITCH_BEND, 0, 64);
+			} catch (InterruptedException e) {
+				return;
+			} catch (InvalidMidiDataException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private void send(int command, int data1, int data2) throws InvalidMidiDataException {
+			Receiver r = receiver;
+			if (r != null)
+				r.send(new ShortMessage(command, 0, data1, data2), -1);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package org.ssg.justsynth.bench;
+
+import java.util.Arrays;
+
+import org.craigl.softsynth.AudioConfig;
+import org.craigl.softsynth.BasicOscillator;
+import org.craigl.softsynth.ParallelVoiceRenderer;
+
+//Renders many held voices with 1 up to N threads and checks every thread count against
+//single threaded output bit for bit, exiting with a non-zero status if any differ.
+//ParallelBenchmark times the same chains.
+//
+//Usage: ParallelCheck [voices] [maxThreads]
+//Threads default to the core count but at least MIN_THREADS. The output doesn't depend
+//on having a core per thread, so even a single core machine checks several counts.
+public class ParallelCheck {
+
+	private static final int MIN_THREADS = 4;
+
+	//Blocks compared when checking that the output is identical
+	private static final int CHECK_BLOCKS = 200;
+
+	public static void main(String[] args) {
+
+		int voices = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Math.max(MIN_THREADS, Runtime.getRuntime().availableProcessors());
+		AudioConfig config = AudioConfig.DEFAULT;
+
+		float[] reference = renderReference(config, voices);
+
+		System.out.println(voices+" voices, additive oscillator, "+config);
+		int failures = 0;
+		for(int threads=1;threads<=maxThreads;threads++){
+			BenchChain chain = newChain(config, voices);
+			ParallelVoiceRenderer renderer = new ParallelVoiceRenderer(chain.osc, chain.vca, threads);
+			chain.mixer.setSampleProvider(renderer);
+
+			boolean identical = Arrays.equals(reference, render(chain, voices));
+			renderer.shutdown();
+
+			System.out.println(threads+" threads: "+(identical ? "identical" : "differs"));
+			if(!identical)
+				failures++;
+		}
+		if(failures > 0)
+			System.exit(1);
+	}
+
+	//The heavier additive oscillator, so there is real work to share
+	private static BenchChain newChain(AudioConfig config, int voices){
+		return new BenchChain(config, new BasicOscillator(voices, voices, config.getSampleRate()));
+	}
+
+	//Single threaded output through the plain VCA
+	private static float[] renderReference(AudioConfig config, int voices){
+		return render(newChain(config, voices), voices);
+	}
+
+	//Holds every key and returns the mix of the first CHECK_BLOCKS blocks
+	private static float[] render(BenchChain chain, int voices){
+		float[] out = new float[CHECK_BLOCKS * chain.blockSize];
+		float[] mix = chain.buffer[chain.buffer.length-1];
+		chain.hold(voices);
+		for(int b=0;b<CHECK_BLOCKS;b++){
+			chain.render();
+			System.arraycopy(mix, 0, out, b * chain.blockSize, chain.blockSize);
+		}
+		return out;
+	}
+}
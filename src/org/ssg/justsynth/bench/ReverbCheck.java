@@ -0,0 +1,68 @@
+package org.ssg.justsynth.bench;
+
+import java.util.Random;
+
+import org.craigl.softsynth.ConvolutionReverb;
+import org.craigl.softsynth.SampleProviderIntfc;
+
+//Compares the partitioned convolution against a plain sum over the impulse, for
+//blocks of several sizes, and exits with a non-zero status if the reverb is off
+//by more than the float rounding of the spectra allows.
+public class ReverbCheck {
+
+	//Largest difference allowed, relative to the loudest sample of the reverb
+	private static final double MAX_ERROR = 1e-4;
+
+	public static void main(String[] args) {
+
+		Random random = new Random(2);
+		float[] impulse = ConvolutionReverb.syntheticImpulse(22050, 0.25, 3);
+		double energy = 0;
+		for(float s : impulse)
+			energy += (double)s * s;
+		double scale = 1.0 / Math.sqrt(energy);
+
+		double worst = 0;
+		for(int blockSize : new int[]{64, 128, 500, 1024}){
+			final float[] signal = new float[22050];
+			for(int i=0;i<signal.length;i++)
+				signal[i] = (random.nextInt(50) == 0) ? (float)random.nextGaussian() : 0.0f;
+
+			ConvolutionReverb reverb = new ConvolutionReverb(blockSize);
+			reverb.setImpulse(impulse);
+			reverb.setDry(0.0);
+			reverb.setWet(1.0);
+			final int[] pos = new int[1];
+			reverb.setSampleProvider(new SampleProviderIntfc(){
+				public int getSamples(float[][] buffer, int numSamples){
+					System.arraycopy(signal, pos[0], buffer[0], 0, numSamples);
+					return numSamples;
+				}
+			});
+
+			//The reverb comes out one partition late
+			int delay = reverb.getPartition();
+			float[][] buffer = new float[1][blockSize];
+			double maxError = 0;
+			double peak = 0;
+			for(pos[0]=0; pos[0]+blockSize<=signal.length; pos[0]+=blockSize){
+				reverb.getSamples(buffer, blockSize);
+				for(int i=0;i<blockSize;i++){
+					int t = pos[0] + i - delay;
+					double expected = 0;
+					for(int j=0; j<impulse.length && j<=t; j++)
+						expected += signal[t-j] * impulse[j] * scale;
+					maxError = Math.max(maxError, Math.abs(buffer[0][i] - expected));
+					peak = Math.max(peak, Math.abs(expected));
+				}
+			}
+			double error = maxError / peak;
+			System.out.println("block "+blockSize+", partition "+delay+": max error "+error);
+			worst = Math.max(worst, error);
+		}
+
+		System.out.println("worst: "+worst+" (bound "+MAX_ERROR+")");
+		if(worst > MAX_ERROR)
+			System.exit(1);
+	}
+}
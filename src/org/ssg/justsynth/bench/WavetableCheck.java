@@ -0,0 +1,28 @@
+package org.ssg.justsynth.bench;
+
+import org.craigl.softsynth.AudioConfig;
+import org.craigl.softsynth.BasicOscillator;
+import org.craigl.softsynth.WavetableOscillator;
+
+//Compares the wavetable oscillator against the additive one for every note
+//and exits with a non-zero status if any note is outside WavetableOscillator.MAX_ERROR
+public class WavetableCheck {
+
+	public static void main(String[] args) {
+
+		//Ten seconds per note, so phase drift would show up
+		int numSamples = AudioConfig.DEFAULT.getSampleRate() * 10;
+		double worst = 0;
+
+		for(int i=0;i<BasicOscillator.NUM_NOTES;i++){
+			double error = new WavetableOscillator().measureError(i, numSamples);
+			System.out.println("note "+i+": max error "+error);
+			if(error > worst)
+				worst = error;
+		}
+
+		System.out.println("worst: "+worst+" (bound "+WavetableOscillator.MAX_ERROR+")");
+		if(worst > WavetableOscillator.MAX_ERROR)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,128 @@
+package org.craigl.softsynth;
+
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * VectorKernels Class
+ * <p>
+ * SIMD versions of the sample kernels, using the widest vectors the CPU<br>
+ * has. Kept out of the main sources, in the vector source set, which the<br>
+ * build only compiles on a JDK that has jdk.incubator.vector. Running needs<br>
+ * --add-modules jdk.incubator.vector too; SampleKernels.get() only loads<br>
+ * this class when it is on the class path and the module is there.
+ * <p>
+ * Every lane does the same arithmetic in the same order as the scalar<br>
+ * loop, so the output is identical, and the samples left over after the<br>
+ * last full vector go through the scalar loop.
+ * <p>
+ * mix() is not overridden. The JIT already vectorizes the scalar loop,<br>
+ * which measured faster than any Vector API version of it.
+ */
+
+class VectorKernels extends SampleKernels {
+
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+	//PCM packing narrows floats to shorts half as wide, which this JDK only
+	//compiles to SIMD instructions up to 256 bit floats
+	private static final VectorSpecies<Float> PCM_FLOATS = (FLOATS.vectorBitSize() > 256) ? FloatVector.SPECIES_256 : FLOATS;
+	private static final VectorSpecies<Short> PCM_SHORTS = VectorSpecies.of(short.class, VectorShape.forBitSize(PCM_FLOATS.vectorBitSize() / 2));
+
+	//Adding this rounds any float below 2^22 to a whole number, and leaves
+	//that number in the low bits of the sum
+	private static final float ROUNDER = 1.5f * (1 << 23);
+	private static final int ROUNDER_BITS = Float.floatToIntBits(ROUNDER);
+
+	//The gain is applied in double like the scalar loop, so each float vector
+	//is half as wide as the double vector it widens into
+	private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Float> HALF_FLOATS = VectorSpecies.of(float.class, VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+
+	//Vector stores write the shorts in native order, PCM wants big endian
+	private static final boolean SWAP_BYTES = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+	VectorKernels() {
+		if (FLOATS.length() < 4) {
+			throw new UnsupportedOperationException("No SIMD: " + FLOATS);
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "vector " + FLOATS.vectorBitSize() + " bit";
+	}
+
+	@Override
+	public void applyGain(float[] row, double[] gain, int numSamples) {
+
+		int bound = HALF_FLOATS.loopBound(numSamples);
+		int i = 0;
+		for (; i < bound; i += HALF_FLOATS.length()) {
+			DoubleVector s = (DoubleVector) FloatVector.fromArray(HALF_FLOATS, row, i).convertShape(VectorOperators.F2D, DOUBLES, 0);
+			s = s.mul(DoubleVector.fromArray(DOUBLES, gain, i));
+			((FloatVector) s.convertShape(VectorOperators.D2F, HALF_FLOATS, 0)).intoArray(row, i);
+		}
+		for (; i < numSamples; i++) {
+			row[i] *= gain[i];
+		}
+	}
+
+	@Override
+	public int countClipped(float[] samples, int numSamples) {
+
+		int bound = FLOATS.loopBound(numSamples);
+		int clipped = 0;
+		int i = 0;
+		for (; i < bound; i += FLOATS.length()) {
+			FloatVector v = FloatVector.fromArray(FLOATS, samples, i);
+			clipped += v.compare(VectorOperators.GT, 1.0f).or(v.compare(VectorOperators.LT, -1.0f)).trueCount();
+		}
+		for (; i < numSamples; i++) {
+			if (samples[i] > 1.0f || samples[i] < -1.0f)
+				clipped++;
+		}
+		return clipped;
+	}
+
+	//Math.round has no vector equivalent, and converting floats to ints is slow in this
+	//JDK. Adding ROUNDER rounds to nearest with ties to even, so a tie that went down
+	//is put back up to match Math.round. NaN becomes 0, as it does in Math.round.
+	@Override
+	public int toPCM(float[] samples, byte[] pcm, int numSamples) {
+
+		int bound = PCM_FLOATS.loopBound(numSamples);
+		int i = 0;
+		for (; i < bound; i += PCM_FLOATS.length()) {
+			FloatVector f = FloatVector.fromArray(PCM_FLOATS, samples, i).mul((float) Short.MAX_VALUE);
+			f = f.max((float) Short.MIN_VALUE).min((float) Short.MAX_VALUE);
+			f = f.blend(0.0f, f.test(VectorOperators.IS_NAN));
+
+			FloatVector rounded = f.add(ROUNDER).sub(ROUNDER);
+			rounded = rounded.add(1.0f, f.sub(rounded).compare(VectorOperators.EQ, 0.5f));
+			IntVector t = rounded.add(ROUNDER).reinterpretAsInts().sub(ROUNDER_BITS);
+
+			ShortVector s = (ShortVector) t.convertShape(VectorOperators.I2S, PCM_SHORTS, 0);
+			if (SWAP_BYTES) {
+				s = s.lanewise(VectorOperators.ROL, 8);
+			}
+			ByteVector bytes = s.reinterpretAsBytes();
+			bytes.intoArray(pcm, i * 2);
+		}
+		for (; i < numSamples; i++) {
+			short s = SamplePlayer.toShort(samples[i]);
+
+			pcm[i * 2] = (byte) (s >> 8);
+			pcm[i * 2 + 1] = (byte) (s & 0xFF);
+		}
+		return numSamples * 2;
+	}
+}